@@ -0,0 +1,285 @@
+package ru.mail.polis.dao.pranova;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memory table keeping keys and values off heap.
+ * Cells are appended to large direct slabs, the index only maps a key view of the slab
+ * to the packed reference (slab number, offset) of the latest record, and every record refers
+ * to the previous record of its key, so that a snapshot reads the version it saw. A new record links
+ * to the newest older one an open snapshot reads, skipping the rest; the records skipped stay
+ * in their slab, so the size counts every record written.
+ * Slabs are never reused, they are freed all together once the table is flushed and nobody reads it,
+ * so cells are copied out of the slabs on reading and no cell ever refers to them.
+ * Record is the timestamp (negative for a tombstone), the reference of the previous record (-1 if none),
+ * the key and the value if present, sizes are ints.
+ * A value with an expiration time has the complement of its size followed by the time.
+ */
+@ThreadSafe
+public class ArenaMemTable implements Table {
+    /**
+     * Size of a slab, larger records get a slab of their own.
+     */
+    static final int SLAB_SIZE = 1024 * 1024;
+    private static final int KEY_OFFSET = Long.BYTES * 2 + Integer.BYTES;
+    private static final long NONE = -1L;
+
+    private final NavigableMap<ByteBuffer, Long> index = new ConcurrentSkipListMap<>();
+    private final List<ByteBuffer> slabs = new CopyOnWriteArrayList<>();
+    private final LongAdder sizeInBytes = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private volatile Slab slab = newSlab(SLAB_SIZE);
+    private final SnapshotSequences snapshots;
+
+    /**
+     * Table read by no snapshot, a record links to no older one.
+     */
+    public ArenaMemTable() {
+        this(new SnapshotSequences());
+    }
+
+    /**
+     * Table keeping the records the snapshots read.
+     *
+     * @param snapshots is sequence numbers of the open snapshots.
+     */
+    ArenaMemTable(@NotNull final SnapshotSequences snapshots) {
+        this.snapshots = snapshots;
+    }
+
+    private static final class Slab {
+        final int number;
+        final ByteBuffer data;
+        final AtomicInteger position = new AtomicInteger();
+
+        Slab(final int number, @NotNull final ByteBuffer data) {
+            this.number = number;
+            this.data = data;
+        }
+    }
+
+    private Slab newSlab(final int size) {
+        synchronized (slabs) {
+            slabs.add(ByteBuffer.allocateDirect(size));
+            return new Slab(slabs.size() - 1, slabs.get(slabs.size() - 1));
+        }
+    }
+
+    /**
+     * Reserve space for a record, threads bump the position of the current slab without locking.
+     *
+     * @param size of the record.
+     * @return packed reference of the reserved space
+     */
+    private long allocate(final int size) {
+        if (size > SLAB_SIZE / 4) {
+            return reference(newSlab(size).number, 0);
+        }
+        while (true) {
+            final Slab current = slab;
+            final int offset = current.position.getAndAdd(size);
+            if (offset + size <= SLAB_SIZE && offset >= 0) {
+                return reference(current.number, offset);
+            }
+            synchronized (slabs) {
+                if (slab == current) {
+                    slab = newSlab(SLAB_SIZE);
+                }
+            }
+        }
+    }
+
+    private static long reference(final int slab, final int offset) {
+        return (long) slab << 32 | offset;
+    }
+
+    private ByteBuffer view(final long reference, final int offset, final int size) {
+        final ByteBuffer view = slabs.get((int) (reference >>> 32)).duplicate();
+        final int position = (int) reference + offset;
+        view.limit(position + size);
+        view.position(position);
+        return view.slice();
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return sizeInBytes.sum();
+    }
+
+    @Override
+    public long rows() {
+        return rows.sum();
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+        upsert(key, Value.of(value));
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        final int keySize = key.remaining();
+        final int valueSize = value.isRemoved() ? 0 : value.getData().remaining();
+        final boolean expiring = value.getExpiration() != Value.NEVER;
+        final int size = KEY_OFFSET + keySize
+                + (value.isRemoved() ? 0 : Integer.BYTES + valueSize + (expiring ? Long.BYTES : 0));
+        final long reference = allocate(size);
+        final ByteBuffer record = view(reference, 0, size);
+        record.putLong(value.isRemoved() ? -value.getTimeStamp() : value.getTimeStamp());
+        record.putLong(NONE);
+        record.putInt(keySize);
+        record.put(key.duplicate());
+        if (!value.isRemoved()) {
+            if (expiring) {
+                record.putInt(~valueSize);
+                record.putLong(value.getExpiration());
+            } else {
+                record.putInt(valueSize);
+            }
+            record.put(value.getData());
+        }
+        // The record is not reachable before it is linked, so the link may be rewritten by a retry
+        final boolean[] created = new boolean[1];
+        index.compute(view(reference, KEY_OFFSET, keySize), (k, previous) -> {
+            created[0] = previous == null;
+            record.putLong(Long.BYTES, older(previous == null ? NONE : previous, value.getTimeStamp()));
+            return reference;
+        });
+        sizeInBytes.add(size);
+        if (created[0]) {
+            rows.increment();
+        }
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) {
+        upsert(key, Value.tombstone());
+    }
+
+    private Cell cell(@NotNull final ByteBuffer key, final long reference) {
+        final ByteBuffer record = view(reference, 0, Long.BYTES);
+        final long timestamp = record.getLong(0);
+        if (timestamp < 0) {
+            return new Cell(key, new Value(-timestamp, null));
+        }
+        final int offset = KEY_OFFSET + key.remaining();
+        final int valueSize = view(reference, offset, Integer.BYTES).getInt(0);
+        if (valueSize < 0) {
+            final long expiration = view(reference, offset + Integer.BYTES, Long.BYTES).getLong(0);
+            return new Cell(key, new Value(timestamp,
+                    copy(view(reference, offset + Integer.BYTES + Long.BYTES, ~valueSize)), expiration));
+        }
+        return new Cell(key, new Value(timestamp, copy(view(reference, offset + Integer.BYTES, valueSize))));
+    }
+
+    private Cell cell(@NotNull final Map.Entry<ByteBuffer, Long> entry) {
+        return cell(copy(entry.getKey()), entry.getValue());
+    }
+
+    /**
+     * The newest record of the chain not newer than the sequence.
+     *
+     * @return reference of the record or {@link #NONE}
+     */
+    private long at(final long latest, final long sequence) {
+        long reference = latest;
+        while (reference != NONE) {
+            final ByteBuffer header = view(reference, 0, Long.BYTES * 2);
+            if (Math.abs(header.getLong(0)) <= sequence) {
+                return reference;
+            }
+            reference = header.getLong(Long.BYTES);
+        }
+        return NONE;
+    }
+
+    /**
+     * The newest record of the chain an open snapshot reads, the records of a chain are never relinked.
+     *
+     * @param latest     is reference of the newest record.
+     * @param shadowedAt is timestamp of the record to be put in front of the chain.
+     * @return reference of the record or {@link #NONE}
+     */
+    private long older(final long latest, final long shadowedAt) {
+        long reference = latest;
+        long newer = shadowedAt;
+        while (reference != NONE) {
+            final ByteBuffer header = view(reference, 0, Long.BYTES * 2);
+            final long timestamp = Math.abs(header.getLong(0));
+            if (snapshots.isRead(timestamp, newer)) {
+                return reference;
+            }
+            newer = timestamp;
+            reference = header.getLong(Long.BYTES);
+        }
+        return NONE;
+    }
+
+    private static ByteBuffer copy(@NotNull final ByteBuffer view) {
+        final ByteBuffer copy = ByteBuffer.allocate(view.remaining());
+        copy.put(view.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) {
+        final Long reference = index.get(key);
+        return reference == null ? null : cell(key, reference);
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key, final long sequence) {
+        final Long latest = index.get(key);
+        final long reference = latest == null ? NONE : at(latest, sequence);
+        return reference == NONE ? null : cell(key, reference);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        return Iterators.transform(index.tailMap(from).entrySet().iterator(), this::cell);
+    }
+
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, final long sequence) {
+        final Iterator<Cell> cells = Iterators.transform(index.tailMap(from).entrySet().iterator(), entry -> {
+            final long reference = at(entry.getValue(), sequence);
+            return reference == NONE ? null : cell(copy(entry.getKey()), reference);
+        });
+        return Iterators.filter(cells, Objects::nonNull);
+    }
+
+    @Override
+    public Iterator<Cell> decreasingIterator(@NotNull final ByteBuffer from) {
+        return Iterators.transform(index.headMap(from, true).descendingMap().entrySet().iterator(), this::cell);
+    }
+
+    /**
+     * Free the slabs through their cleaners, the index refers to them and must not be read afterwards.
+     */
+    @Override
+    public void free() {
+        synchronized (slabs) {
+            for (final ByteBuffer data : slabs) {
+                MappedRegion.unmap(data);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ru.mail.polis.dao.pranova;
+
+import com.google.common.collect.AbstractIterator;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/**
+ * Table of the layout written before {@link FileTable} got blocks and a footer, read once to rewrite it.
+ * Cells go one after another: the key size and the key, the timestamp (negative for a tombstone),
+ * the value size and the value if present. They are followed by the offsets of the cells
+ * and the number of cells, all sizes are ints and the rest are longs.
+ */
+final class BaselineTable implements Closeable {
+    private final File file;
+    private final ByteBuffer mapped;
+    private final int rows;
+    private final int offsets;
+
+    /**
+     * Map the table.
+     *
+     * @param file is the table.
+     * @throws IOException if the file is not a table of this layout
+     */
+    BaselineTable(@NotNull final File file) throws IOException {
+        this.file = file;
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.mapped = MappedRegion.map(fc, 0L, fc.size());
+        }
+        final int size = mapped.limit();
+        final long count = size < Long.BYTES ? -1 : mapped.getLong(size - Long.BYTES);
+        if (count < 0 || count > (size - Long.BYTES) / Long.BYTES) {
+            close();
+            throw new IOException("Not a table: " + file);
+        }
+        this.rows = (int) count;
+        this.offsets = size - Long.BYTES - Long.BYTES * rows;
+    }
+
+    long rows() {
+        return rows;
+    }
+
+    /**
+     * Cells in the order of keys, they refer to the mapping and must be used before the table is closed.
+     *
+     * @return all the cells, an {@link UncheckedIOException} is thrown at a broken cell
+     */
+    Iterator<Cell> iterator() {
+        return new AbstractIterator<>() {
+            private int next;
+
+            @Override
+            protected Cell computeNext() {
+                return next < rows ? cellAt(next++) : endOfData();
+            }
+        };
+    }
+
+    private Cell cellAt(final int i) {
+        final long start = mapped.getLong(offsets + Long.BYTES * i);
+        if (start < 0 || start > offsets - Integer.BYTES - Long.BYTES) {
+            throw broken();
+        }
+        int offset = (int) start;
+        final ByteBuffer key = slice(offset + Integer.BYTES, mapped.getInt(offset));
+        offset += Integer.BYTES + key.remaining();
+        final long timestamp = mapped.getLong(offset);
+        offset += Long.BYTES;
+        if (timestamp < 0) {
+            return new Cell(key, new Value(-timestamp, null));
+        }
+        return new Cell(key, new Value(timestamp, slice(offset + Integer.BYTES, mapped.getInt(offset))));
+    }
+
+    private ByteBuffer slice(final int offset, final int size) {
+        if (size < 0 || size > offsets - offset) {
+            throw broken();
+        }
+        final ByteBuffer slice = mapped.duplicate();
+        slice.position(offset);
+        slice.limit(offset + size);
+        return slice.slice();
+    }
+
+    private UncheckedIOException broken() {
+        return new UncheckedIOException(new IOException("Broken table: " + file));
+    }
+
+    @Override
+    public void close() {
+        MappedRegion.unmap(mapped);
+    }
+}
@@ -0,0 +1,219 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decoded data block of a {@link FileTable}.
+ * Keys are front-coded: a cell keeps the length of the prefix shared with the previous key
+ * and the rest of the key, every {@link #RESTART_INTERVAL}th cell is a restart point with the full key.
+ * Cells are followed by the offsets of the restart points, their number and the number of cells.
+ * A value with an expiration time keeps the complement of its size followed by the time.
+ * Lookups search the restart points and scan at most one interval; a block is decoded by a cursor,
+ * so it is not thread-safe and is used by a single reader.
+ */
+final class Block {
+    /**
+     * Target size of a block, a block is closed as soon as it grows beyond.
+     */
+    static final int SIZE = 4 * 1024;
+
+    /**
+     * Number of cells between restart points.
+     */
+    static final int RESTART_INTERVAL = 16;
+
+    private final ByteBuffer data;
+    private final int count;
+    private final int offsets;
+
+    // Cursor over front-coded cells: the last decoded cell and where the next one starts
+    private int cursor = -1;
+    private int next;
+    private int valueOffset;
+    private byte[] key = new byte[0];
+    private int keySize;
+    // A key with nothing shared is read from the block in place
+    private int keyOffset = -1;
+
+    Block(@NotNull final ByteBuffer data) {
+        this.data = data;
+        this.count = data.getInt(data.limit() - Integer.BYTES);
+        final int restarts = data.getInt(data.limit() - Integer.BYTES * 2);
+        this.offsets = data.limit() - Integer.BYTES * 2 - Integer.BYTES * restarts;
+    }
+
+    int size() {
+        return count;
+    }
+
+    private int offsetAt(final int i) {
+        return data.getInt(offsets + Integer.BYTES * i);
+    }
+
+    /**
+     * Key of the cell, a front-coded key is a view valid until the next call.
+     *
+     * @param i is index of the cell.
+     * @return key of the cell
+     */
+    ByteBuffer keyAt(final int i) {
+        assert 0 <= i && i < count;
+        seek(i);
+        return keyOffset < 0 ? ByteBuffer.wrap(key, 0, keySize).slice() : slice(keyOffset, keySize);
+    }
+
+    private ByteBuffer slice(final int offset, final int size) {
+        final ByteBuffer slice = data.duplicate();
+        slice.position(offset);
+        slice.limit(offset + size);
+        return slice.slice();
+    }
+
+    Cell cellAt(final int i) {
+        assert 0 <= i && i < count;
+        seek(i);
+        final ByteBuffer key = keyOffset < 0 ? ByteBuffer.wrap(key()) : slice(keyOffset, keySize);
+        int offset = valueOffset;
+
+        // Timestamp
+        final long timestamp = data.getLong(offset);
+        offset += Long.BYTES;
+
+        // Value
+        if (timestamp < 0) {
+            return new Cell(key, new Value(-timestamp, null));
+        } else {
+            int valueSize = data.getInt(offset);
+            offset += Integer.BYTES;
+            long expiration = Value.NEVER;
+            if (valueSize < 0) {
+                valueSize = ~valueSize;
+                expiration = data.getLong(offset);
+                offset += Long.BYTES;
+            }
+            final ByteBuffer value = data.duplicate();
+            value.position(offset);
+            value.limit(offset + valueSize);
+            return new Cell(key, new Value(timestamp, value.slice(), expiration));
+        }
+    }
+
+    private byte[] key() {
+        final byte[] copy = new byte[keySize];
+        System.arraycopy(key, 0, copy, 0, keySize);
+        return copy;
+    }
+
+    /**
+     * Move the cursor to the cell, forward moves decode from the current cell,
+     * others from the closest restart point.
+     */
+    private void seek(final int i) {
+        if (i < cursor || cursor < 0 || i - cursor > RESTART_INTERVAL) {
+            cursor = i / RESTART_INTERVAL * RESTART_INTERVAL - 1;
+            next = offsetAt(i / RESTART_INTERVAL);
+        }
+        while (cursor < i) {
+            decode();
+        }
+    }
+
+    private void decode() {
+        int offset = next;
+        final int shared = getVarInt(offset);
+        offset += varIntSize(shared);
+        final int unshared = getVarInt(offset);
+        offset += varIntSize(unshared);
+        if (shared == 0) {
+            keyOffset = offset;
+        } else {
+            if (key.length < shared + unshared) {
+                final byte[] grown = new byte[Math.max(shared + unshared, key.length * 2)];
+                System.arraycopy(key, 0, grown, 0, keyOffset < 0 ? shared : 0);
+                key = grown;
+            }
+            if (keyOffset >= 0) {
+                slice(keyOffset, shared).get(key, 0, shared);
+                keyOffset = -1;
+            }
+            slice(offset, unshared).get(key, shared, unshared);
+        }
+        keySize = shared + unshared;
+        offset += unshared;
+
+        valueOffset = offset;
+        final long timestamp = data.getLong(offset);
+        offset += Long.BYTES;
+        if (timestamp >= 0) {
+            final int valueSize = data.getInt(offset);
+            offset += Integer.BYTES + (valueSize < 0 ? Long.BYTES + ~valueSize : valueSize);
+        }
+        next = offset;
+        cursor++;
+    }
+
+    private int getVarInt(final int offset) {
+        int result = 0;
+        int shift = 0;
+        int position = offset;
+        byte b;
+        do {
+            b = data.get(position++);
+            result |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return result;
+    }
+
+    static int varIntSize(final int value) {
+        int size = 1;
+        for (int rest = value >>> 7; rest != 0; rest >>>= 7) {
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarInt(@NotNull final ByteBuffer buffer, final int value) {
+        int rest = value;
+        while ((rest & ~0x7F) != 0) {
+            buffer.put((byte) (rest & 0x7F | 0x80));
+            rest >>>= 7;
+        }
+        buffer.put((byte) rest);
+    }
+
+    /**
+     * Search of the key inside the block: a binary search over the restart points and a scan of a single interval.
+     *
+     * @param from  is key to look for.
+     * @param order of the following iteration.
+     * @return index of the key if present, otherwise index of the next cell in the given order
+     */
+    int position(@NotNull final ByteBuffer from, @NotNull final FileTable.Order order) {
+        int left = 0;
+        int right = (count - 1) / RESTART_INTERVAL;
+        while (left < right) {
+            final int mid = (left + right + 1) >>> 1;
+            if (keyAt(mid * RESTART_INTERVAL).compareTo(from) <= 0) {
+                left = mid;
+            } else {
+                right = mid - 1;
+            }
+        }
+        int i = left * RESTART_INTERVAL;
+        int cmp = -1;
+        while (i < count) {
+            cmp = keyAt(i).compareTo(from);
+            if (cmp >= 0) {
+                break;
+            }
+            i++;
+        }
+        if (cmp == 0 || order == FileTable.Order.DIRECT) {
+            return i;
+        }
+        return i - 1;
+    }
+}
@@ -0,0 +1,166 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decoded data blocks of the tables of a storage kept in direct memory.
+ * Blocks are found by the generation of the table and the offset of the block, so entries of deleted
+ * tables are never hit again and just age out.
+ * Eviction is CLOCK: a hit only sets the reference bit of the entry, the hand gives referenced entries
+ * a second chance and evicts the others, so lookups never take a lock.
+ */
+final class BlockCache {
+    static final BlockCache NONE = new BlockCache(0);
+
+    // A single block may take at most this share of the cache, so huge cells don't wash it out
+    private static final int MAX_SHARE = 8;
+
+    private final long capacity;
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    // Guarded by itself
+    private final Queue<Entry> clock = new ArrayDeque<>();
+    private long size;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Cache of blocks.
+     *
+     * @param capacity is max number of bytes of the cached blocks, nothing is cached if it's 0.
+     */
+    BlockCache(final long capacity) {
+        assert capacity >= 0;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Look up a block.
+     *
+     * @param generation is number of the table.
+     * @param offset     is offset of the block in the table.
+     * @return decoded block or null if it isn't cached
+     */
+    @Nullable
+    ByteBuffer get(final long generation, final long offset) {
+        if (capacity == 0) {
+            return null;
+        }
+        final Entry entry = entries.get(new Key(generation, offset));
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        entry.referenced = true;
+        hits.increment();
+        return entry.block.duplicate();
+    }
+
+    /**
+     * Cache a block that missed.
+     *
+     * @param generation is number of the table.
+     * @param offset     is offset of the block in the table.
+     * @param block      is decoded block, left untouched.
+     * @return the cached copy of the block or the block itself if it isn't cached
+     */
+    ByteBuffer put(final long generation, final long offset, @NotNull final ByteBuffer block) {
+        if (capacity == 0 || block.remaining() > capacity / MAX_SHARE) {
+            return block;
+        }
+        final ByteBuffer copy = ByteBuffer.allocateDirect(block.remaining());
+        copy.put(block.duplicate());
+        copy.flip();
+        final Key key = new Key(generation, offset);
+        final Entry entry = new Entry(key, copy);
+        if (entries.putIfAbsent(key, entry) != null) {
+            // Another reader has just cached the same block
+            return copy;
+        }
+        synchronized (clock) {
+            clock.add(entry);
+            size += copy.capacity();
+            while (size > capacity) {
+                final Entry victim = clock.remove();
+                if (victim.referenced) {
+                    victim.referenced = false;
+                    clock.add(victim);
+                } else {
+                    entries.remove(victim.key, victim);
+                    size -= victim.block.capacity();
+                }
+            }
+        }
+        return copy.duplicate();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Share of the lookups served from the cache.
+     *
+     * @return hit rate from 0 to 1
+     */
+    double hitRate() {
+        final long hits = hits();
+        final long total = hits + misses();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    long sizeInBytes() {
+        synchronized (clock) {
+            return size;
+        }
+    }
+
+    private static final class Key {
+        private final long generation;
+        private final long offset;
+
+        Key(final long generation, final long offset) {
+            this.generation = generation;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return generation == key.generation && offset == key.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(generation * 31 + offset);
+        }
+    }
+
+    private static final class Entry {
+        private final Key key;
+        private final ByteBuffer block;
+        private volatile boolean referenced;
+
+        Entry(@NotNull final Key key, @NotNull final ByteBuffer block) {
+            this.key = key;
+            this.block = block;
+        }
+    }
+}
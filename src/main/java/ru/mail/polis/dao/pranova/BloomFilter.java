@@ -0,0 +1,182 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * Bloom filter over the keys of a table, bits are kept in a (possibly mapped) {@link LongBuffer}.
+ * Keys are hashed by the first half of MurmurHash3 x64 128 computed in place, nothing is allocated per key.
+ */
+final class BloomFilter {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+
+    private final LongBuffer bits;
+    private final int hashes;
+    private final long size;
+
+    BloomFilter(@NotNull final LongBuffer bits, final int hashes) {
+        this.bits = bits;
+        this.hashes = hashes;
+        this.size = (long) bits.limit() * Long.SIZE;
+    }
+
+    /**
+     * Build a filter for the keys with the given hashes.
+     *
+     * @param keyHashes is array of {@link #hash(ByteBuffer)} values.
+     * @param count     is number of keys in the array.
+     * @return filter
+     */
+    static BloomFilter of(@NotNull final long[] keyHashes, final int count) {
+        final BloomFilter filter = forKeys(count);
+        for (int i = 0; i < count; i++) {
+            filter.add(keyHashes[i]);
+        }
+        return filter;
+    }
+
+    /**
+     * Empty filter sized for the number of keys, more keys may be added at a higher false positive rate.
+     *
+     * @param keys is expected number of keys.
+     * @return filter
+     */
+    static BloomFilter forKeys(final long keys) {
+        final long words = Math.max(1L, (keys * BITS_PER_KEY + Long.SIZE - 1) / Long.SIZE);
+        assert words <= Integer.MAX_VALUE;
+        return new BloomFilter(LongBuffer.allocate((int) words), HASHES);
+    }
+
+    /**
+     * Add the key to the filter.
+     *
+     * @param key to add.
+     */
+    void add(@NotNull final ByteBuffer key) {
+        add(hash(key));
+    }
+
+    /**
+     * Hash of the remaining bytes of the key, the position is not changed.
+     *
+     * @param key to hash.
+     * @return the same value as the first long of Guava murmur3_128
+     */
+    static long hash(@NotNull final ByteBuffer key) {
+        final int offset = key.position();
+        final int length = key.remaining();
+        final int tail = offset + (length & ~15);
+        long h1 = 0;
+        long h2 = 0;
+        for (int i = offset; i < tail; i += 16) {
+            h1 ^= mixK1(littleEndian(key, i));
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(littleEndian(key, i + Long.BYTES));
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        final int rest = length & 15;
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = rest - 1; i >= 0; i--) {
+            final long b = key.get(tail + i) & 0xFFL;
+            if (i >= Long.BYTES) {
+                k2 ^= b << ((i - Long.BYTES) * 8);
+            } else {
+                k1 ^= b << (i * 8);
+            }
+        }
+        if (rest > Long.BYTES) {
+            h2 ^= mixK2(k2);
+        }
+        if (rest > 0) {
+            h1 ^= mixK1(k1);
+        }
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        return h1 + h2;
+    }
+
+    private static long littleEndian(@NotNull final ByteBuffer key, final int index) {
+        final long value = key.getLong(index);
+        return key.order() == ByteOrder.LITTLE_ENDIAN ? value : Long.reverseBytes(value);
+    }
+
+    private static long mixK1(final long k1) {
+        return Long.rotateLeft(k1 * C1, 31) * C2;
+    }
+
+    private static long mixK2(final long k2) {
+        return Long.rotateLeft(k2 * C2, 33) * C1;
+    }
+
+    private static long fmix(final long k) {
+        long h = k;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private void add(final long hash) {
+        final int first = (int) hash;
+        final int second = (int) (hash >>> 32);
+        for (int i = 1; i <= hashes; i++) {
+            final long bit = index(first, second, i);
+            final int word = (int) (bit >>> 6);
+            bits.put(word, bits.get(word) | (1L << bit));
+        }
+    }
+
+    /**
+     * Check the key against the filter.
+     *
+     * @param key to look for.
+     * @return false if the key is definitely absent
+     */
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        final long hash = hash(key);
+        final int first = (int) hash;
+        final int second = (int) (hash >>> 32);
+        for (int i = 1; i <= hashes; i++) {
+            final long bit = index(first, second, i);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long index(final int first, final int second, final int i) {
+        final long combined = first + (long) i * second;
+        return (combined & Long.MAX_VALUE) % size;
+    }
+
+    int getHashes() {
+        return hashes;
+    }
+
+    /**
+     * Serialized form of the filter bits.
+     *
+     * @return buffer with the bits
+     */
+    ByteBuffer toBytes() {
+        final ByteBuffer result = ByteBuffer.allocate(bits.limit() * Long.BYTES);
+        result.asLongBuffer().put(bits.duplicate().rewind());
+        return result;
+    }
+}
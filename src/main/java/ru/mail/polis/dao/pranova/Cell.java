@@ -9,6 +9,11 @@ public final class Cell {
     static final Comparator<Cell> COMPARATOR =
             Comparator.comparing(Cell::getKey).thenComparing(Cell::getValue);
 
+    /**
+     * Result of a lookup of a key that has never been written, compared by identity.
+     */
+    public static final Cell ABSENT = new Cell(ByteBuffer.allocate(0), new Value(0L, null));
+
     @NotNull
     private final ByteBuffer key;
     @NotNull
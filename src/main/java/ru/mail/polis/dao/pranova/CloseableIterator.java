@@ -0,0 +1,77 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Iterator holding the tables it reads, they are released once it is closed.
+ * A scan should close it as soon as it stops reading, exhausting it releases the tables as well.
+ *
+ * @param <T> is type of the elements.
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable {
+    /**
+     * Release the tables, the iterator must not be read afterwards. Closing it again does nothing.
+     */
+    @Override
+    void close();
+
+    /**
+     * Elements computed from other iterators, closing it closes them.
+     *
+     * @param iterator is the elements.
+     * @param sources  is iterators the elements are read from.
+     * @param <T>      is type of the elements.
+     * @return the same elements
+     */
+    static <T> CloseableIterator<T> of(@NotNull final Iterator<T> iterator,
+                                       @NotNull final Collection<? extends CloseableIterator<?>> sources) {
+        return new CloseableIterator<>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+                for (final CloseableIterator<?> source : sources) {
+                    source.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Elements computed from another iterator, closing it closes the source.
+     *
+     * @param iterator is the elements.
+     * @param source   is iterator the elements are read from.
+     * @param <T>      is type of the elements.
+     * @return the same elements
+     */
+    static <T> CloseableIterator<T> of(@NotNull final Iterator<T> iterator,
+                                       @NotNull final CloseableIterator<?> source) {
+        return of(iterator, List.of(source));
+    }
+
+    /**
+     * Elements holding nothing to release.
+     *
+     * @param iterator is the elements.
+     * @param <T>      is type of the elements.
+     * @return the same elements
+     */
+    static <T> CloseableIterator<T> of(@NotNull final Iterator<T> iterator) {
+        return of(iterator, Collections.emptyList());
+    }
+}
@@ -0,0 +1,62 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compression of {@link FileTable} data blocks.
+ * The id of the codec is stored in the table, so the built-in ids must never change.
+ */
+public interface Codec {
+    Codec NONE = new NoneCodec();
+    Codec DEFLATE = new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+    Codec LZ = new LzCodec();
+
+    /**
+     * Identifier stored in the footer of the table.
+     *
+     * @return id of the codec
+     */
+    int id();
+
+    /**
+     * Compress the block.
+     *
+     * @param raw is block to compress.
+     * @return compressed block or null if the block doesn't get smaller
+     */
+    @Nullable
+    ByteBuffer compress(@NotNull ByteBuffer raw);
+
+    /**
+     * Decompress the block.
+     *
+     * @param compressed is block returned by {@link #compress(ByteBuffer)}.
+     * @param rawSize    is size of the original block.
+     * @return original block
+     */
+    @NotNull
+    ByteBuffer decompress(@NotNull ByteBuffer compressed, int rawSize);
+
+    /**
+     * Resolve the codec of a table.
+     *
+     * @param id stored in the table.
+     * @return codec
+     */
+    static Codec byId(final int id) {
+        switch (id) {
+            case NoneCodec.ID:
+                return NONE;
+            case DeflateCodec.ID:
+                return DEFLATE;
+            case LzCodec.ID:
+                return LZ;
+            default:
+                throw new IllegalArgumentException("Unknown codec " + id);
+        }
+    }
+}
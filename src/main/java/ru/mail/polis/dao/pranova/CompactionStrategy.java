@@ -0,0 +1,52 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+
+/**
+ * Decides which tables to merge next.
+ * Strategies are called from the compaction thread only, one task at a time.
+ */
+interface CompactionStrategy {
+    /**
+     * Next compaction to run in background.
+     *
+     * @param tables is current snapshot.
+     * @return the task or null if nothing needs to be compacted
+     */
+    @Nullable
+    CompactionTask pick(@NotNull TableSet tables);
+
+    /**
+     * Merge of everything into a single level, requested explicitly.
+     *
+     * @param tables is current snapshot.
+     * @return the task or null if there are no tables
+     */
+    @Nullable
+    default CompactionTask major(@NotNull final TableSet tables) {
+        if (tables.isEmpty()) {
+            return null;
+        }
+        return new CompactionTask(new ArrayList<>(tables.all()), Math.max(1, tables.depth() - 1), false);
+    }
+
+    /**
+     * Strategy chosen by the settings.
+     *
+     * @param config is settings of the storage.
+     * @return new strategy
+     */
+    static CompactionStrategy of(@NotNull final LSMConfig config) {
+        switch (config.compaction) {
+            case LEVELED:
+                return new LeveledCompaction(config);
+            case TIERED:
+                return new SizeTieredCompaction(config);
+            default:
+                throw new IllegalArgumentException("Unknown compaction " + config.compaction);
+        }
+    }
+}
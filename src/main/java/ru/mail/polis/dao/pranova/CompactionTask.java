@@ -0,0 +1,41 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tables chosen to be merged together and the level to put the result to.
+ */
+final class CompactionTask {
+    private final List<FileTable> inputs;
+    private final int level;
+    private final boolean trivial;
+
+    /**
+     * Compaction of the tables into tables of the target size.
+     *
+     * @param inputs  is tables to merge.
+     * @param level   is level of the output tables.
+     * @param trivial is true if the only input may be moved to the level without rewriting.
+     */
+    CompactionTask(@NotNull final List<FileTable> inputs, final int level, final boolean trivial) {
+        assert !trivial || inputs.size() == 1;
+        this.inputs = Collections.unmodifiableList(inputs);
+        this.level = level;
+        this.trivial = trivial;
+    }
+
+    List<FileTable> inputs() {
+        return inputs;
+    }
+
+    int level() {
+        return level;
+    }
+
+    boolean isTrivial() {
+        return trivial;
+    }
+}
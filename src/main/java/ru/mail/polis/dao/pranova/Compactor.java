@@ -0,0 +1,227 @@
+package ru.mail.polis.dao.pranova;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Merges the inputs of a compaction into new tables.
+ * Large merges are split into disjoint key ranges at sampled block boundaries of the inputs,
+ * every range is merged into its own tables on a fork-join pool.
+ * Expired values become tombstones. Tombstones past the grace period are dropped, unless a table
+ * left out of the compaction may still have a version of the key they delete.
+ */
+final class Compactor implements Closeable {
+    private final File base;
+    private final LSMConfig config;
+    private final long targetFileSize;
+    private final AtomicLong generations;
+    private final BlockCache cache;
+    private final WriteBuffers buffers;
+    private final ForkJoinPool pool;
+
+    /**
+     * Compaction executor.
+     *
+     * @param base        is root directory.
+     * @param config      is settings of the storage.
+     * @param generations is source of table numbers.
+     * @param cache       is decoded blocks of the new tables.
+     * @param buffers     is buffers and writing threads of the storage, the new tables are written with.
+     */
+    Compactor(@NotNull final File base,
+              @NotNull final LSMConfig config,
+              @NotNull final AtomicLong generations,
+              @NotNull final BlockCache cache,
+              @NotNull final WriteBuffers buffers) {
+        assert config.compactionThreads > 0;
+        this.base = base;
+        this.config = config;
+        this.targetFileSize = config.targetFileSize;
+        this.generations = generations;
+        this.cache = cache;
+        this.buffers = buffers;
+        this.pool = new ForkJoinPool(config.compactionThreads);
+    }
+
+    /**
+     * Write the merged inputs of the task, the inputs are left untouched.
+     *
+     * @param task  is compaction to run.
+     * @param files is all the tables of the storage, the inputs of the task included.
+     * @return new tables, not overlapping each other
+     * @throws IOException if the tables can't be written, the written ones are deleted
+     */
+    List<FileTable> merge(@NotNull final CompactionTask task, @NotNull final TableSet files) throws IOException {
+        final Predicate<Cell> live = live(task, files);
+        final List<ByteBuffer> splits = splits(task.inputs());
+        final List<ForkJoinTask<List<FileTable>>> parts = new ArrayList<>(splits.size() + 1);
+        for (int i = 0; i <= splits.size(); i++) {
+            final ByteBuffer from = i == 0 ? LSMDao.nullBuffer : splits.get(i - 1);
+            final ByteBuffer to = i == splits.size() ? null : splits.get(i);
+            parts.add(pool.submit(() -> write(task, live, from, to)));
+        }
+
+        final List<FileTable> outputs = new ArrayList<>();
+        Throwable error = null;
+        for (final ForkJoinTask<List<FileTable>> part : parts) {
+            try {
+                outputs.addAll(part.get());
+            } catch (ExecutionException e) {
+                error = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = e;
+            }
+        }
+        if (error != null) {
+            for (final FileTable table : outputs) {
+                table.deleteFileTable();
+            }
+            throw new IOException("Can't merge tables", error);
+        }
+        return outputs;
+    }
+
+    /**
+     * Boundaries of the ranges, there is a range per target file size of the inputs
+     * up to the number of threads.
+     */
+    private List<ByteBuffer> splits(@NotNull final List<FileTable> inputs) {
+        long total = 0;
+        for (final FileTable table : inputs) {
+            total += table.sizeInBytes();
+        }
+        final int ranges = (int) Math.min(pool.getParallelism(), total / targetFileSize);
+        if (ranges < 2) {
+            return Collections.emptyList();
+        }
+
+        final List<ByteBuffer> samples = new ArrayList<>();
+        for (final FileTable table : inputs) {
+            samples.addAll(table.samples((int) Math.max(1, ranges * table.sizeInBytes() / total)));
+        }
+        Collections.sort(samples);
+        final List<ByteBuffer> splits = new ArrayList<>(ranges - 1);
+        for (int i = 1; i < ranges && !samples.isEmpty(); i++) {
+            final ByteBuffer split = samples.get(i * samples.size() / ranges);
+            if (splits.isEmpty() || splits.get(splits.size() - 1).compareTo(split) < 0) {
+                splits.add(split);
+            }
+        }
+        return splits;
+    }
+
+    /**
+     * Filter of the merged cells, a tombstone is kept while it is young or may shadow a cell of another table.
+     */
+    private Predicate<Cell> live(@NotNull final CompactionTask task, @NotNull final TableSet files) {
+        final long horizon = Time.ago(config.tombstoneGracePeriod);
+        final List<FileTable> others = new ArrayList<>(files.all());
+        others.removeAll(task.inputs());
+        return cell -> {
+            final Value value = cell.getValue();
+            if (!value.isRemoved() || value.getTimeStamp() >= horizon) {
+                return true;
+            }
+            for (final FileTable table : others) {
+                if (table.mightContain(cell.getKey())) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    private List<FileTable> write(@NotNull final CompactionTask task,
+                                  @NotNull final Predicate<Cell> live,
+                                  @NotNull final ByteBuffer from,
+                                  @Nullable final ByteBuffer to) throws IOException {
+        final List<Iterator<Cell>> iterators = new ArrayList<>();
+        for (final FileTable table : task.inputs()) {
+            iterators.add(table.iterator(from));
+        }
+        final long now = System.currentTimeMillis();
+        final Iterator<Cell> expired = Iterators.transform(LSMDao.getCellsIterator(iterators),
+                cell -> cell.getValue().isExpired(now) ? new Cell(cell.getKey(), cell.getValue().expire()) : cell);
+        final Iterator<Cell> merged = Iterators.filter(expired, live::test);
+        final Iterator<Cell> cells = to == null ? merged : before(merged, to);
+        final long rows = rows(task.inputs(), targetFileSize);
+        final List<FileTable> outputs = new ArrayList<>();
+        try {
+            while (cells.hasNext()) {
+                final long generation = generations.incrementAndGet();
+                final File tmp = new File(base, LSMDao.PREFIX + generation + LSMDao.TEMP);
+                FileTable.write(cells, tmp, config, task.level(), targetFileSize, rows, buffers);
+                final File dest = new File(base, LSMDao.PREFIX + generation + LSMDao.SUFFIX);
+                Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                outputs.add(new FileTable(dest, generation, cache));
+            }
+        } catch (IOException e) {
+            for (final FileTable table : outputs) {
+                table.deleteFileTable();
+            }
+            throw e;
+        }
+        return outputs;
+    }
+
+    /**
+     * Rows an output may get: all the rows of the inputs or as many as fit the size at their average size.
+     */
+    private static long rows(@NotNull final List<FileTable> inputs, final long maxSize) {
+        long rows = 0;
+        long size = 0;
+        for (final FileTable table : inputs) {
+            rows += table.rows();
+            size += table.sizeInBytes();
+        }
+        if (size == 0) {
+            return rows;
+        }
+        // A table is cut after the block reaching the size
+        return Math.min(rows, (long) Math.ceil((double) rows * (maxSize + Block.SIZE) / size));
+    }
+
+    private static Iterator<Cell> before(@NotNull final Iterator<Cell> cells, @NotNull final ByteBuffer to) {
+        final PeekingIterator<Cell> peeking = Iterators.peekingIterator(cells);
+        return new AbstractIterator<>() {
+            @Override
+            protected Cell computeNext() {
+                if (peeking.hasNext() && peeking.peek().getKey().compareTo(to) < 0) {
+                    return peeking.next();
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
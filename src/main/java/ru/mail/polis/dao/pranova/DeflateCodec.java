@@ -0,0 +1,77 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link Deflater} based codec, slow but compact.
+ * A thread keeps its deflater and inflater and resets them between blocks, the native zlib streams
+ * are not allocated per block.
+ */
+public final class DeflateCodec implements Codec {
+    static final int ID = 1;
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * Deflate codec.
+     *
+     * @param level is compression level from 0 to 9.
+     */
+    public DeflateCodec(final int level) {
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer compress(@NotNull final ByteBuffer raw) {
+        if (raw.remaining() < 2) {
+            return null;
+        }
+        final Deflater deflater = deflaters.get();
+        try {
+            deflater.setInput(raw.duplicate());
+            deflater.finish();
+            final ByteBuffer result = ByteBuffer.allocate(raw.remaining() - 1);
+            while (!deflater.finished()) {
+                if (!result.hasRemaining()) {
+                    return null;
+                }
+                deflater.deflate(result);
+            }
+            return result.flip();
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer decompress(@NotNull final ByteBuffer compressed, final int rawSize) {
+        final Inflater inflater = inflaters.get();
+        try {
+            inflater.setInput(compressed.duplicate());
+            final ByteBuffer result = ByteBuffer.allocate(rawSize);
+            while (result.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(result) == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("Truncated block");
+                }
+            }
+            return result.flip();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted block", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+}
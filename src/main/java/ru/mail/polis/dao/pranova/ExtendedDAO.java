@@ -5,7 +5,52 @@ import ru.mail.polis.dao.DAO;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
 
 public interface ExtendedDAO extends DAO {
-    Cell getCell(@NotNull final ByteBuffer key) throws IOException;
+    /**
+     * Insert or update a value that is gone once its time to live passes.
+     *
+     * @param key   of the value.
+     * @param value to put.
+     * @param ttl   is time to live in milliseconds, positive.
+     * @throws IOException if the value can't be written
+     */
+    void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value, final long ttl) throws IOException;
+
+    /**
+     * Latest cell of the key, a tombstone if the key was removed.
+     *
+     * @param key to look for.
+     * @return the cell or {@link Cell#ABSENT} if the key has never been written
+     * @throws IOException if a table can't be read
+     */
+    @NotNull
+    Cell findCell(@NotNull final ByteBuffer key) throws IOException;
+
+    /**
+     * Latest cell of the key, a tombstone if the key was removed.
+     *
+     * @param key to look for.
+     * @return the cell
+     * @throws IOException            if a table can't be read
+     * @throws NoSuchElementException if the key has never been written
+     */
+    @NotNull
+    default Cell getCell(@NotNull final ByteBuffer key) throws IOException {
+        final Cell cell = findCell(key);
+        if (cell == Cell.ABSENT) {
+            throw new NoSuchElementException("Not found");
+        }
+        return cell;
+    }
+
+    /**
+     * Take a consistent view of the storage, it must be closed once read.
+     *
+     * @return snapshot of the storage
+     * @throws IOException if the snapshot can't be taken
+     */
+    @NotNull
+    Snapshot snapshot() throws IOException;
 }
@@ -1,151 +1,441 @@
 package ru.mail.polis.dao.pranova;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.LongBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable sorted table on disk.
+ * File consists of data blocks, Bloom filter, sparse index with the first key of every block
+ * (followed by the last key of the table) and fixed-size footer.
+ * Only the index is searched before a single block is decoded.
+ * Blocks may be compressed, a block is stored raw if its compressed and raw sizes are equal.
+ * The footer keeps the compaction level of the table, it is rewritten in place on trivial moves.
+ * The footer ends with the format version and a magic number. Only the current version is read,
+ * tables of the layout without a footer are rewritten by {@link LSMDao} on opening, see {@link BaselineTable}.
+ * Data blocks are mapped in windows cut at block boundaries, so a table is not limited by 2 GB;
+ * only the Bloom filter, the index and a single block must be smaller.
+ * Decoded blocks go through the {@link BlockCache} of the storage.
+ * A table is reference counted by the {@link TableSet}s holding it; a table replaced by compaction
+ * is renamed at once, so it is never opened again, and deleted when the last set holding it is released.
+ * Mappings are released with the last reference instead of waiting for GC, so blocks read past the cache
+ * are copied and no cell ever refers to them; keys of the index are valid while the table is held.
+ * The first and the last key of the table are copied on open and outlive it, unless they are huge.
+ * A table listed by the {@link Manifest} is described by it and mapped on first read only.
+ */
 public class FileTable implements Table {
-    private final ByteBuffer cells;
-    private final int rows;
-    private final LongBuffer offsets;
-    private final File file;
+    static final long MAGIC = 0x50524C5353544142L;
+    static final int VERSION = 5;
+    static final int FOOTER_SIZE = Long.BYTES * 4 + Integer.BYTES * 5;
+    private static final int LEVEL_OFFSET = Long.BYTES + Integer.BYTES * 2;
+    private static final long WINDOW = 1L << 30;
+    private static final int MAX_COPIED_KEY = 4 * 1024;
+
+    // Mapped state, set once by open
+    private MappedRegion data;
+    private long rows;
+    private int blocks;
+    private ByteBuffer[] firstKeys;
+    private long[] blockOffsets;
+    private int[] blockSizes;
+    private int[] rawSizes;
+    private Codec codec;
+    private BloomFilter bloom;
+    private ByteBuffer bloomMapping;
+    private ByteBuffer indexMapping;
+    private volatile boolean opened;
+    private volatile boolean unmapped;
+
+    private volatile ByteBuffer firstKey;
+    private volatile ByteBuffer lastKey;
+    private volatile File file;
+    private final long fileSize;
+    private final long generation;
+    private final long window;
+    private final BlockCache cache;
+    private volatile int level;
+    private final AtomicInteger refs = new AtomicInteger();
+    private volatile boolean retired;
+    private static final Logger log = LoggerFactory.getLogger(FileTable.class);
 
     /**
      * Create an object for file on disk.
      *
-     * @param file to get a table
+     * @param file       to get a table
+     * @param generation is number of the table
      * @throws IOException if an I/O error is thrown by a visitor method
      */
-    FileTable(@NotNull final File file) throws IOException {
+    FileTable(@NotNull final File file, final long generation) throws IOException {
+        this(file, generation, WINDOW, BlockCache.NONE);
+    }
+
+    /**
+     * Create an object for file on disk.
+     *
+     * @param file       to get a table
+     * @param generation is number of the table
+     * @param cache      is decoded blocks shared by the tables of the storage
+     * @throws IOException if the file is not a table
+     */
+    FileTable(@NotNull final File file, final long generation, @NotNull final BlockCache cache) throws IOException {
+        this(file, generation, WINDOW, cache);
+    }
+
+    /**
+     * Create an object for file on disk.
+     *
+     * @param file       to get a table
+     * @param generation is number of the table
+     * @param window     is max size of a mapped window of data blocks
+     * @param cache      is decoded blocks shared by the tables of the storage
+     * @throws IOException if the file is not a table
+     */
+    FileTable(@NotNull final File file,
+              final long generation,
+              final long window,
+              @NotNull final BlockCache cache) throws IOException {
         this.file = file;
-        final long fileSize = file.length();
-        final ByteBuffer mapped;
-        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
-            assert file.length() <= Integer.MAX_VALUE;
-            mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0L, fileSize).order(ByteOrder.BIG_ENDIAN);
+        this.generation = generation;
+        this.window = window;
+        this.cache = cache;
+        this.fileSize = file.length();
+        this.level = map();
+        this.opened = true;
+    }
+
+    /**
+     * Create an object for a table described by the manifest, the file is not read until the table is.
+     *
+     * @param file       to get a table
+     * @param generation is number of the table
+     * @param level      is compaction level of the table
+     * @param size       is size of the file
+     * @param firstKey   is the least key of the table or null if unknown
+     * @param lastKey    is the greatest key of the table or null if unknown
+     * @param cache      is decoded blocks shared by the tables of the storage
+     */
+    FileTable(@NotNull final File file,
+              final long generation,
+              final int level,
+              final long size,
+              @Nullable final ByteBuffer firstKey,
+              @Nullable final ByteBuffer lastKey,
+              @NotNull final BlockCache cache) {
+        this.file = file;
+        this.generation = generation;
+        this.window = WINDOW;
+        this.cache = cache;
+        this.fileSize = size;
+        this.level = level;
+        this.firstKey = firstKey;
+        this.lastKey = lastKey;
+    }
+
+    /**
+     * Map the table on first use.
+     */
+    private void open() {
+        if (!opened) {
+            synchronized (this) {
+                if (!opened) {
+                    try {
+                        map();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    opened = true;
+                }
+            }
         }
+    }
 
-        // Rows
-        final long rowsValue = mapped.getLong((int) (fileSize - Long.BYTES));
-        assert rowsValue <= Integer.MAX_VALUE;
-        this.rows = (int) rowsValue;
+    /**
+     * Read the footer and the index and map the rest.
+     *
+     * @return compaction level kept by the footer
+     */
+    private int map() throws IOException {
+        final int stored;
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer tail = MappedRegion.map(fc, Math.max(0L, fileSize - FOOTER_SIZE),
+                    Math.min(fileSize, FOOTER_SIZE));
+            final long bloomOffset;
+            final long indexOffset;
+            final int hashes;
+            try {
+                checkVersion(tail, file);
+                final ByteBuffer footer = tail.duplicate();
+                bloomOffset = footer.getLong();
+                indexOffset = footer.getLong();
+                this.rows = footer.getLong();
+                this.blocks = footer.getInt();
+                hashes = footer.getInt();
+                this.codec = Codec.byId(footer.getInt());
+                stored = footer.getInt();
+            } finally {
+                MappedRegion.unmap(tail);
+            }
 
-        // Offsets
-        final ByteBuffer offsetBuffer = mapped.duplicate();
-        offsetBuffer.position(mapped.limit() - Long.BYTES * rows - Long.BYTES);
-        offsetBuffer.limit(mapped.limit() - Long.BYTES);
-        this.offsets = offsetBuffer.slice().asLongBuffer();
+            // Index
+            this.indexMapping = MappedRegion.map(fc, indexOffset, fileSize - FOOTER_SIZE - indexOffset);
+            final ByteBuffer index = indexMapping.duplicate();
+            this.firstKeys = new ByteBuffer[blocks];
+            this.blockOffsets = new long[blocks];
+            this.blockSizes = new int[blocks];
+            this.rawSizes = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                firstKeys[i] = key(index);
+                blockOffsets[i] = index.getLong();
+                blockSizes[i] = index.getInt();
+                rawSizes[i] = index.getInt();
+            }
+            final ByteBuffer last = key(index);
+            if (firstKey == null) {
+                firstKey = blocks == 0 ? LSMDao.nullBuffer : bound(firstKeys[0]);
+            }
+            if (lastKey == null) {
+                lastKey = bound(last);
+            }
+
+            // Bloom filter
+            this.bloomMapping = MappedRegion.map(fc, bloomOffset, indexOffset - bloomOffset);
+            this.bloom = new BloomFilter(bloomMapping.asLongBuffer(), hashes);
 
-        // Cells
-        final ByteBuffer cellBuffer = mapped.duplicate();
-        cellBuffer.limit(offsetBuffer.position());
-        this.cells = cellBuffer.slice();
+            // Blocks
+            final long[] boundaries = Arrays.copyOf(blockOffsets, blocks + 1);
+            boundaries[blocks] = bloomOffset;
+            this.data = MappedRegion.map(fc, boundaries, window);
+        }
+        return stored;
     }
 
-    static void write(@NotNull final Iterator<Cell> cells, @NotNull final File to) throws IOException {
-        try (FileChannel fc = FileChannel.open(to.toPath(), StandardOpenOption.CREATE_NEW,
-                StandardOpenOption.WRITE)) {
-            final List<Long> offsets = new ArrayList<>();
-            long offset = 0;
-            while (cells.hasNext()) {
-                final Cell cell = cells.next();
-                offsets.add(offset);
-
-                // Key
-                offset += writeBuffer(fc, cell.getKey());
-
-                // Value
-                final Value value = cell.getValue();
-
-                // Timestamp
-                if (value.isRemoved()) {
-                    fc.write(Bytes.fromLong(-cell.getValue().getTimeStamp()));
-                } else {
-                    fc.write(Bytes.fromLong(cell.getValue().getTimeStamp()));
-                }
-                offset += Long.BYTES;
+    /**
+     * Check the magic and the version.
+     *
+     * @param tail is the footer.
+     * @param file is the file for messages.
+     */
+    private static void checkVersion(@NotNull final ByteBuffer tail, @NotNull final File file) throws IOException {
+        final int size = tail.limit();
+        if (size < FOOTER_SIZE || tail.getLong(size - Long.BYTES) != MAGIC) {
+            throw new IOException("Not a table: " + file);
+        }
+        final int version = tail.getInt(size - Long.BYTES - Integer.BYTES);
+        if (version != VERSION) {
+            throw new IOException("Unsupported table version " + version + ": " + file);
+        }
+    }
 
-                // Value
-                if (!value.isRemoved()) {
-                    offset += writeBuffer(fc, value.getData());
+    /**
+     * Whether the file ends with the magic of the footer, otherwise it is of the layout before the footer.
+     *
+     * @param file to check.
+     * @return true if the file has a footer
+     * @throws IOException if the file can't be read
+     */
+    static boolean hasFooter(@NotNull final File file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = fc.size();
+            if (size < FOOTER_SIZE) {
+                return false;
+            }
+            final ByteBuffer magic = ByteBuffer.allocate(Long.BYTES);
+            while (magic.hasRemaining()) {
+                if (fc.read(magic, size - magic.remaining()) < 0) {
+                    return false;
                 }
             }
+            return magic.getLong(0) == MAGIC;
+        }
+    }
+
+    private static ByteBuffer key(@NotNull final ByteBuffer index) {
+        final int size = index.getInt();
+        final ByteBuffer key = index.slice();
+        key.limit(size);
+        index.position(index.position() + size);
+        return key.asReadOnlyBuffer();
+    }
+
+    static void write(@NotNull final Iterator<Cell> cells,
+                      @NotNull final File to,
+                      @NotNull final Codec codec,
+                      final long rows) throws IOException {
+        final LSMConfig config = new LSMConfig();
+        config.codec = codec;
+        write(cells, to, config, 0, Long.MAX_VALUE, rows);
+    }
 
-            // Offsets
-            for (final Long anOffset : offsets) {
-                fc.write(Bytes.fromLong(anOffset));
+    /**
+     * Write cells to a new table through buffers of its own.
+     *
+     * @param cells   is sorted cells.
+     * @param to      is file to create.
+     * @param config  is settings of the storage: compression, write buffer and sync policy.
+     * @param level   is compaction level of the table.
+     * @param maxSize is size to stop at, the rest of the cells are left in the iterator.
+     * @param rows    is expected number of rows.
+     * @throws IOException if the table can't be written
+     */
+    static void write(@NotNull final Iterator<Cell> cells,
+                      @NotNull final File to,
+                      @NotNull final LSMConfig config,
+                      final int level,
+                      final long maxSize,
+                      final long rows) throws IOException {
+        try (WriteBuffers buffers = new WriteBuffers()) {
+            write(cells, to, config, level, maxSize, rows, buffers);
+        }
+    }
+
+    /**
+     * Write cells to a new table.
+     *
+     * @param cells   is sorted cells.
+     * @param to      is file to create.
+     * @param config  is settings of the storage: compression, write buffer and sync policy.
+     * @param level   is compaction level of the table.
+     * @param maxSize is size to stop at, the rest of the cells are left in the iterator.
+     * @param rows    is expected number of rows, the Bloom filter is sized for it.
+     * @param buffers is buffers and writing threads of the storage.
+     * @throws IOException if the table can't be written
+     */
+    static void write(@NotNull final Iterator<Cell> cells,
+                      @NotNull final File to,
+                      @NotNull final LSMConfig config,
+                      final int level,
+                      final long maxSize,
+                      final long rows,
+                      @NotNull final WriteBuffers buffers) throws IOException {
+        try (FileChannel fc = FileChannel.open(to.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+             TableWriter writer = new TableWriter(fc, config, level, rows, buffers)) {
+            while (cells.hasNext() && writer.size() < maxSize) {
+                writer.add(cells.next());
             }
+            writer.finish();
+        }
+    }
 
-            // Cells
-            fc.write(Bytes.fromLong(offsets.size()));
+    /**
+     * Move the table to another level without rewriting the data.
+     *
+     * @param level to move to.
+     * @throws IOException if the footer can't be updated
+     */
+    void moveTo(final int level) throws IOException {
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+            buffer.putInt(level);
+            buffer.flip();
+            fc.write(buffer, fileSize - LEVEL_OFFSET);
+            fc.force(false);
         }
+        this.level = level;
     }
 
-    private static long writeBuffer(@NotNull final FileChannel fc,
-                                    @NotNull final ByteBuffer buffer) throws IOException {
-        final int valueSize = buffer.remaining();
-        fc.write(Bytes.fromInt(valueSize));
-        int offset = Integer.BYTES;
-        fc.write(buffer);
-        offset += valueSize;
-        return offset;
+    long generation() {
+        return generation;
     }
 
-    private ByteBuffer keyAt(final int i) {
-        assert 0 <= i && i < rows;
-        final long offset = offsets.get(i);
-        assert offset <= Integer.MAX_VALUE;
-        final int keySize = cells.getInt((int) offset);
-        final ByteBuffer key = cells.duplicate();
-        key.position((int) (offset + Integer.BYTES));
-        key.limit(key.position() + keySize);
-        return key.slice();
+    int level() {
+        return level;
     }
 
-    private Cell cellAt(final int i) {
-        assert 0 <= i && i < rows;
-        long offset = offsets.get(i);
-        assert offset <= Integer.MAX_VALUE;
+    ByteBuffer firstKey() {
+        if (firstKey == null) {
+            open();
+        }
+        return checkMapped(firstKey).duplicate();
+    }
 
-        // Key
-        final int keySize = cells.getInt((int) offset);
-        offset += Integer.BYTES;
-        final ByteBuffer key = keyAt(i);
-        offset += keySize;
+    ByteBuffer lastKey() {
+        if (lastKey == null) {
+            open();
+        }
+        return checkMapped(lastKey).duplicate();
+    }
 
-        // Timestamp
-        final long timestamp = cells.getLong((int) offset);
-        offset += Long.BYTES;
+    /**
+     * The bounds are handed out to the sets and the manifest and must outlive the mapping,
+     * a huge key is left in the index not to fill the heap.
+     */
+    private static ByteBuffer bound(@NotNull final ByteBuffer key) {
+        return key.remaining() > MAX_COPIED_KEY ? key : copy(key).asReadOnlyBuffer();
+    }
 
-        // Value
-        if (timestamp < 0) {
-            return new Cell(key.slice(), new Value(-timestamp, null));
-        } else {
-            final int valueSize = cells.getInt((int) offset);
-            offset += Integer.BYTES;
-            final ByteBuffer value = cells.duplicate();
-            value.position((int) offset);
-            value.limit(value.position() + valueSize);
-            return new Cell(key.slice(), new Value(timestamp, value.slice()));
+    private ByteBuffer checkMapped(@NotNull final ByteBuffer bound) {
+        if (bound.isDirect() && unmapped) {
+            throw new IllegalStateException("Bounds of a released table are read: " + file);
         }
+        return bound;
     }
 
-    private int position(@NotNull final ByteBuffer from, @NotNull final Order order) {
+    /**
+     * Keys splitting the table into parts of about the same size.
+     *
+     * @param parts is number of parts.
+     * @return up to parts - 1 first keys of blocks in ascending order, copied
+     */
+    List<ByteBuffer> samples(final int parts) {
+        open();
+        final List<ByteBuffer> result = new ArrayList<>(parts);
+        for (int i = 1; i < parts; i++) {
+            final int block = (int) ((long) i * blocks / parts);
+            if (block > 0) {
+                result.add(copy(firstKeys[block]));
+            }
+        }
+        return result;
+    }
+
+    private Block block(final int i) {
+        assert 0 <= i && i < blocks;
+        final ByteBuffer cached = cache.get(generation, blockOffsets[i]);
+        if (cached != null) {
+            return new Block(cached);
+        }
+        final ByteBuffer stored = data.slice(blockOffsets[i], blockSizes[i]);
+        final ByteBuffer raw = blockSizes[i] == rawSizes[i] ? stored : codec.decompress(stored, rawSizes[i]);
+        final ByteBuffer decoded = cache.put(generation, blockOffsets[i], raw);
+        // Cells outlive the table, they must not keep views of the mapping
+        return new Block(decoded == stored ? copy(stored) : decoded);
+    }
+
+    private static ByteBuffer copy(@NotNull final ByteBuffer mapped) {
+        final ByteBuffer copy = ByteBuffer.allocate(mapped.remaining());
+        copy.put(mapped.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Binary search over the sparse index.
+     *
+     * @param key to look for.
+     * @return the last block starting not after the key or -1 if the key is less than all keys of the table
+     */
+    private int blockOf(@NotNull final ByteBuffer key) {
         int left = 0;
-        int right = rows - 1;
+        int right = blocks - 1;
         while (left <= right) {
             final int mid = left + (right - left) / 2;
-            final int cmp = from.compareTo(keyAt(mid));
+            final int cmp = key.compareTo(firstKeys[mid]);
             if (cmp < 0) {
                 right = mid - 1;
             } else if (cmp > 0) {
@@ -154,28 +444,69 @@ public class FileTable implements Table {
                 return mid;
             }
         }
-        return order == Order.DIRECT ? left : right;
+        return right;
     }
 
     @NotNull
     @Override
     public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        open();
         return new Iterator<Cell>() {
-            int next = position(from, Order.DIRECT);
+            int index = Math.max(blockOf(from), 0);
+            Block block = index < blocks ? block(index) : null;
+            int next = block == null ? 0 : block.position(from, Order.DIRECT);
 
             @Override
             public boolean hasNext() {
-                return next < rows;
+                while (block != null && next >= block.size()) {
+                    index++;
+                    block = index < blocks ? block(index) : null;
+                    next = 0;
+                }
+                return block != null;
             }
 
             @Override
             public Cell next() {
                 assert hasNext();
-                return cellAt(next++);
+                return block.cellAt(next++);
             }
         };
     }
 
+    /**
+     * Whether the table may have a cell of the key, answered by the key range and the Bloom filter.
+     *
+     * @param key to look for.
+     * @return false if the table surely has no such key
+     */
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        open();
+        return rows > 0
+                && key.compareTo(firstKeys[0]) >= 0
+                && key.compareTo(lastKey) <= 0
+                && bloom.mightContain(key);
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) {
+        open();
+        if (rows == 0 || !bloom.mightContain(key)) {
+            return null;
+        }
+        final int index = blockOf(key);
+        if (index < 0) {
+            return null;
+        }
+        final Block block = block(index);
+        final int i = block.position(key, Order.DIRECT);
+        if (i < block.size() && block.keyAt(i).equals(key)) {
+            return block.cellAt(i);
+        }
+        return null;
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
         throw new UnsupportedOperationException();
@@ -188,27 +519,81 @@ public class FileTable implements Table {
 
     @Override
     public long sizeInBytes() {
-        throw new UnsupportedOperationException();
+        return fileSize;
+    }
+
+    @Override
+    public long rows() {
+        open();
+        return rows;
     }
 
     public void deleteFileTable() throws IOException {
         Files.delete(file.toPath());
     }
 
+    void acquire() {
+        refs.incrementAndGet();
+    }
+
+    /**
+     * Drop a reference, the mappings are released with the last one and the file of a retired table is deleted.
+     * The table can't be read afterwards.
+     */
+    void release() {
+        if (refs.decrementAndGet() != 0) {
+            return;
+        }
+        if (opened) {
+            unmapped = true;
+            data.unmap();
+            MappedRegion.unmap(bloomMapping);
+            MappedRegion.unmap(indexMapping);
+        }
+        if (retired) {
+            try {
+                deleteFileTable();
+            } catch (IOException e) {
+                log.error("Can't delete retired table " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Take the table out of the storage, it stays readable until released by everyone.
+     * Must be called before the last set holding the table is released.
+     *
+     * @param to is new name of the file, it is not a table name anymore.
+     * @throws IOException if the file can't be renamed
+     */
+    void retire(@NotNull final File to) throws IOException {
+        Files.move(file.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        file = to;
+        retired = true;
+    }
+
     @Override
     public Iterator<Cell> decreasingIterator(@NotNull final ByteBuffer from) {
+        open();
         return new Iterator<Cell>() {
-            int next = position(from, Order.REVERSE);
+            int index = blockOf(from);
+            Block block = index < 0 ? null : block(index);
+            int next = block == null ? -1 : block.position(from, Order.REVERSE);
 
             @Override
             public boolean hasNext() {
-                return next >= 0;
+                while (block != null && next < 0) {
+                    index--;
+                    block = index < 0 ? null : block(index);
+                    next = block == null ? -1 : block.size() - 1;
+                }
+                return block != null;
             }
 
             @Override
             public Cell next() {
                 assert hasNext();
-                return cellAt(next--);
+                return block.cellAt(next--);
             }
         };
     }
@@ -1,26 +1,31 @@
 package ru.mail.polis.dao.pranova;
 
+import java.util.Collections;
 import java.util.Iterator;
 
 public class FlushTable {
+    /**
+     * Tells a flush worker to stop, it is sent once per worker after the last table.
+     */
+    static final FlushTable POISON = new FlushTable(-1, Collections.emptyIterator(), 0, true);
 
     private final long generation;
     private final Iterator<Cell> data;
+    private final long rows;
     private final boolean poisonPills;
-    private final boolean compactionTable;
 
     FlushTable(final long generation,
                final Iterator<Cell> data,
-               final boolean poisonPills,
-               final boolean compactionTable) {
+               final long rows,
+               final boolean poisonPills) {
         this.generation = generation;
         this.data = data;
+        this.rows = rows;
         this.poisonPills = poisonPills;
-        this.compactionTable = compactionTable;
     }
 
-    FlushTable(final long generation, final Iterator<Cell> data, final boolean compactionTable) {
-        this(generation, data, false, compactionTable);
+    FlushTable(final long generation, final Iterator<Cell> data, final long rows) {
+        this(generation, data, rows, false);
     }
 
     public long getGeneration() {
@@ -31,11 +36,16 @@ public class FlushTable {
         return data;
     }
 
-    public boolean isPoisonPills() {
-        return poisonPills;
+    /**
+     * Number of keys of the table, for the Bloom filter of the file.
+     *
+     * @return number of keys
+     */
+    long rows() {
+        return rows;
     }
 
-    public boolean isCompactionTable() {
-        return compactionTable;
+    public boolean isPoisonPills() {
+        return poisonPills;
     }
 }
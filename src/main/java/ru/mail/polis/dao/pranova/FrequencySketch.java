@@ -0,0 +1,101 @@
+package ru.mail.polis.dao.pranova;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate access frequency of keys for TinyLFU admission.
+ * A count-min sketch of 4-bit counters packed into longs: a key bumps one counter in each of four rows
+ * and its frequency is the smallest of them. All counters are halved once the number of accesses
+ * reaches ten times the width, so the sketch follows the recent popularity rather than the total one.
+ */
+final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long RESET_MASK = 0x7777_7777_7777_7777L;
+    private static final int[] SEEDS = {0x97cb_3127, 0xc2b2_ae35, 0x85eb_ca6b, 0x27d4_eb2f};
+
+    private final AtomicLongArray table;
+    private final int mask;
+    private final int sampleSize;
+    private final AtomicInteger accesses = new AtomicInteger();
+
+    /**
+     * Sketch for about the given number of distinct hot keys.
+     *
+     * @param entries is expected number of cached keys.
+     */
+    FrequencySketch(final long entries) {
+        final int counters = Integer.highestOneBit((int) Math.min(1 << 24, Math.max(1024L, entries)) - 1) << 1;
+        this.table = new AtomicLongArray(counters / 16);
+        this.mask = counters / 16 - 1;
+        this.sampleSize = counters * 10;
+    }
+
+    /**
+     * Count an access to the key.
+     *
+     * @param hash is hash code of the key.
+     */
+    void increment(final int hash) {
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            added |= increment(index(hash, i), shift(hash, i));
+        }
+        if (added && accesses.incrementAndGet() == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean increment(final int index, final int shift) {
+        while (true) {
+            final long word = table.get(index);
+            if (((word >>> shift) & MAX_COUNT) == MAX_COUNT) {
+                return false;
+            }
+            if (table.compareAndSet(index, word, word + (1L << shift))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Estimated number of recent accesses to the key.
+     *
+     * @param hash is hash code of the key.
+     * @return frequency from 0 to 15
+     */
+    int frequency(final int hash) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            final long word = table.get(index(hash, i));
+            frequency = Math.min(frequency, (int) ((word >>> shift(hash, i)) & MAX_COUNT));
+        }
+        return frequency;
+    }
+
+    private synchronized void reset() {
+        for (int i = 0; i < table.length(); i++) {
+            long word;
+            do {
+                word = table.get(i);
+            } while (!table.compareAndSet(i, word, (word >>> 1) & RESET_MASK));
+        }
+        accesses.set(sampleSize / 2);
+    }
+
+    private static int spread(final int hash, final int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9e37_79b9;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private int index(final int hash, final int row) {
+        return spread(hash, row) & mask;
+    }
+
+    private static int shift(final int hash, final int row) {
+        // Every row takes its counter from another nibble of its word
+        return ((spread(hash, row) >>> 28) & MAX_COUNT) << 2;
+    }
+}
@@ -0,0 +1,139 @@
+package ru.mail.polis.dao.pranova;
+
+/**
+ * Settings of {@link LSMDao}, read once when the storage is opened.
+ */
+public final class LSMConfig {
+    /**
+     * Size of the memory table to flush at.
+     */
+    public long flushThreshold = 1024 * 1024;
+
+    /**
+     * Whether every write waits for fsync of the write-ahead log.
+     */
+    public boolean syncWrites;
+
+    /**
+     * Whether memory tables keep keys and values in direct memory slabs instead of the heap.
+     */
+    public boolean offHeap;
+
+    /**
+     * Number of memory tables sharded by key hash, more stripes mean less contention of many writers.
+     */
+    public int memTableStripes = 1;
+
+    /**
+     * Number of threads writing memory tables to disk.
+     */
+    public int flushThreads = 2;
+
+    /**
+     * Number of full memory tables waiting for a flush thread, writers block once it is exceeded.
+     */
+    public int flushQueueSize = 4;
+
+    /**
+     * Compression of the data blocks of new tables.
+     */
+    public Codec codec = Codec.NONE;
+
+    /**
+     * Size of each of the two buffers a new table is written through.
+     */
+    public int writeBufferSize = 1024 * 1024;
+
+    /**
+     * When new tables are forced to disk.
+     */
+    public SyncPolicy tableSync = SyncPolicy.FINISH;
+
+    /**
+     * Number of bytes to force a table after, used by {@link SyncPolicy#PERIODIC}.
+     */
+    public long syncInterval = 8L * 1024 * 1024;
+
+    /**
+     * Size of decoded data blocks cached in direct memory, 0 turns the cache off.
+     */
+    public long blockCacheSize = 16L * 1024 * 1024;
+
+    /**
+     * Size of the latest cells of hot keys cached on the heap, 0 turns the cache off.
+     */
+    public long rowCacheSize;
+
+    /**
+     * Number of recently missed keys remembered to answer repeated misses at once, 0 turns the cache off.
+     */
+    public int missCacheSize = 4096;
+
+    /**
+     * Number of flushed tables to start a compaction of level 0 at.
+     */
+    public int levelZeroFiles = 4;
+
+    /**
+     * Size of level 1 to start a compaction of it at.
+     */
+    public long levelOneSize = 10L * 1024 * 1024;
+
+    /**
+     * Growth of the size limit of every next level.
+     */
+    public int levelMultiplier = 10;
+
+    /**
+     * Size of compacted tables, the output of a compaction is split into tables of about this size.
+     */
+    public long targetFileSize = 2L * 1024 * 1024;
+
+    /**
+     * Layout of the tables on disk.
+     */
+    public Compaction compaction = Compaction.LEVELED;
+
+    /**
+     * Number of runs of a tier to merge them at, a run is the tables written by one merge,
+     * used by {@link Compaction#TIERED}.
+     */
+    public int tierSize = 4;
+
+    /**
+     * Age in milliseconds a tombstone is kept for, so replicas that missed the delete can be repaired.
+     * Older tombstones are dropped by compactions unless a table outside the compaction may have the key.
+     */
+    public long tombstoneGracePeriod = 24L * 60 * 60 * 1000;
+
+    /**
+     * Number of threads merging key ranges of a compaction in parallel.
+     */
+    public int compactionThreads = Runtime.getRuntime().availableProcessors();
+
+    public enum SyncPolicy {
+        /**
+         * Leave it to the operating system.
+         */
+        NONE,
+        /**
+         * Force once the table is complete, before it replaces the log or the compaction inputs.
+         */
+        FINISH,
+        /**
+         * Also force every syncInterval bytes to spread the write-back.
+         */
+        PERIODIC
+    }
+
+    public enum Compaction {
+        /**
+         * Non-overlapping levels growing by levelMultiplier, fewer tables per read.
+         */
+        LEVELED,
+        /**
+         * Tiers of similarly sized tables, less rewriting per write.
+         */
+        TIERED
+    }
+}
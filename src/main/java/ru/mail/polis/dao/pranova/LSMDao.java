@@ -2,6 +2,7 @@ package ru.mail.polis.dao.pranova;
 
 import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.dao.Iters;
@@ -9,6 +10,7 @@ import ru.mail.polis.Record;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
@@ -18,24 +20,46 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NavigableMap;
-import java.util.ArrayList;
 import java.util.NoSuchElementException;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class LSMDao implements ExtendedDAO {
-    private static final String SUFFIX = ".dat";
+    static final String SUFFIX = ".dat";
     public static final String TEMP = ".tmp";
-    private static final String PREFIX = "PRL";
+    static final String RETIRED = ".old";
+    static final String PREFIX = "PRL";
     private final MemoryTablePool memTable;
     private final File base;
-    private long generation;
-    private final NavigableMap<Long, FileTable> files;
+    private final AtomicLong generations;
+    private volatile TableSet files;
+    private final Object filesLock = new Object();
     public static final ByteBuffer nullBuffer = ByteBuffer.allocate(0);
-    private final Worker worker;
+    private final List<Worker> workers;
+    private final NavigableMap<Long, FileTable> flushed = new TreeMap<>();
+    private final SnapshotSequences snapshots = new SnapshotSequences();
+    private final WriteBuffers writeBuffers = new WriteBuffers();
+    private final WriteAheadLog wal;
+    private final LSMConfig config;
+    private final BlockCache blockCache;
+    private final RowCache rowCache;
+    private final MissCache missCache;
+    private final CompactionStrategy compaction;
+    private final Compactor compactor;
+    private final Manifest manifest;
+    private final ExecutorService compactions;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
     private static final Logger log = LoggerFactory.getLogger(LSMDao.class);
 
     /**
@@ -47,48 +71,224 @@ public final class LSMDao implements ExtendedDAO {
      */
     public LSMDao(@NotNull final File base,
                   final long flushThreshold) throws IOException {
+        this(base, config(flushThreshold));
+    }
+
+    /**
+     * LSM storage.
+     *
+     * @param base   is root directory.
+     * @param config is settings of the storage.
+     * @throws IOException if an I/O error is thrown by a visitor method.
+     */
+    public LSMDao(@NotNull final File base,
+                  @NotNull final LSMConfig config) throws IOException {
         this.base = base;
-        assert flushThreshold >= 0L;
-        generation = 0;
-        files = new ConcurrentSkipListMap<>();
+        this.config = config;
+        this.blockCache = new BlockCache(config.blockCacheSize);
+        this.rowCache = config.rowCacheSize == 0 ? RowCache.NONE : new RowCache(config.rowCacheSize);
+        this.missCache = config.missCacheSize == 0 ? MissCache.NONE : new MissCache(config.missCacheSize);
+        this.compaction = CompactionStrategy.of(config);
+        assert config.flushThreshold >= 0L;
+        final NavigableMap<Long, File> found = new TreeMap<>();
+        final NavigableMap<Long, File> logs = new TreeMap<>();
         final EnumSet<FileVisitOption> options = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
         final int maxDeep = 1;
         Files.walkFileTree(base.toPath(), options, maxDeep, new SimpleFileVisitor<>() {
             @Override
             public FileVisitResult visitFile(final Path path, final BasicFileAttributes attrs) throws IOException {
-                if (path.getFileName().toString().endsWith(SUFFIX)
-                        && path.getFileName().toString().startsWith(PREFIX)) {
-                    generation++;
-                    files.put(generation, new FileTable(path.toFile()));
+                final String name = path.getFileName().toString();
+                if (generationOf(name, SUFFIX) >= 0) {
+                    found.put(generationOf(name, SUFFIX), path.toFile());
+                } else if (generationOf(name, WriteAheadLog.SUFFIX) >= 0) {
+                    logs.put(generationOf(name, WriteAheadLog.SUFFIX), path.toFile());
+                } else if (generationOf(name, TEMP) >= 0 || generationOf(name, RETIRED) >= 0
+                        || name.equals(Manifest.TEMP)) {
+                    Files.delete(path);
                 }
                 return FileVisitResult.CONTINUE;
             }
         });
-        generation = files.size() + 1L;
-        this.memTable = new MemoryTablePool(generation, flushThreshold);
-        this.worker = new Worker();
-        worker.start();
+        generations = new AtomicLong(Math.max(found.isEmpty() ? 0L : found.lastKey(),
+                logs.isEmpty() ? 0L : logs.lastKey()));
+        final boolean logged = Manifest.exists(base);
+        this.manifest = new Manifest(base);
+        final NavigableMap<Long, FileTable> tables = logged ? listed(found) : open(found);
+        files = new TableSet(tables.values());
+        manifest.start(tables.values());
+        recover(logs, tables);
+        final long generation = generations.incrementAndGet();
+        this.wal = new WriteAheadLog(base, PREFIX, generation, config.syncWrites);
+        this.memTable = new MemoryTablePool(generations, config, wal, snapshots);
+        this.compactor = new Compactor(base, config, generations, blockCache, writeBuffers);
+        this.compactions = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.workers = new ArrayList<>(config.flushThreads);
+        for (int i = 0; i < config.flushThreads; i++) {
+            final Worker worker = new Worker(i);
+            workers.add(worker);
+            worker.start();
+        }
+        scheduleCompaction();
+    }
+
+    private static LSMConfig config(final long flushThreshold) {
+        final LSMConfig config = new LSMConfig();
+        config.flushThreshold = flushThreshold;
+        return config;
+    }
+
+    private static long generationOf(@NotNull final String name, @NotNull final String suffix) {
+        if (!name.startsWith(PREFIX) || !name.endsWith(suffix)) {
+            return -1;
+        }
+        final String number = name.substring(PREFIX.length(), name.length() - suffix.length());
+        if (number.isEmpty() || !number.chars().allMatch(Character::isDigit)) {
+            return -1;
+        }
+        return Long.parseLong(number);
     }
 
+    /**
+     * Tables of the manifest, none of them is read yet.
+     * Tables missing in the manifest were never published: a flush or a compaction was interrupted,
+     * so the log of a flushed table is still there and the inputs of a compaction are still live.
+     */
+    private NavigableMap<Long, FileTable> listed(@NotNull final NavigableMap<Long, File> found) throws IOException {
+        final NavigableMap<Long, FileTable> tables = new TreeMap<>();
+        for (final Manifest.Entry entry : manifest.entries()) {
+            final File file = found.remove(entry.generation);
+            if (file == null) {
+                throw new IOException("Table " + entry.generation + " of the manifest is missing in " + base);
+            }
+            tables.put(entry.generation, new FileTable(file, entry.generation, entry.level, entry.size,
+                    entry.firstKey, entry.lastKey, blockCache));
+        }
+        for (final File file : found.values()) {
+            log.info("Deleting unpublished table {}", file);
+            Files.delete(file.toPath());
+        }
+        return tables;
+    }
+
+    /**
+     * Every table of a storage written before the manifest, tables of the layout before the footer
+     * are rewritten in the current format first.
+     */
+    private NavigableMap<Long, FileTable> open(@NotNull final NavigableMap<Long, File> found) throws IOException {
+        final NavigableMap<Long, FileTable> tables = new TreeMap<>();
+        for (final var table : found.entrySet()) {
+            if (!FileTable.hasFooter(table.getValue())) {
+                upgrade(table.getValue(), table.getKey());
+            }
+            tables.put(table.getKey(), new FileTable(table.getValue(), table.getKey(), blockCache));
+        }
+        return tables;
+    }
+
+    /**
+     * Rewrite a table of the baseline layout in place, the old file stays until the new one replaces it,
+     * so an interrupted upgrade is done again on the next start.
+     */
+    private void upgrade(@NotNull final File file, final long generation) throws IOException {
+        log.info("Upgrading table {}", file);
+        final File tmp = new File(base, PREFIX + generation + TEMP);
+        try (BaselineTable baseline = new BaselineTable(file)) {
+            FileTable.write(baseline.iterator(), tmp, config, 0, Long.MAX_VALUE, baseline.rows(), writeBuffers);
+        } catch (UncheckedIOException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e.getCause();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void recover(@NotNull final NavigableMap<Long, File> logs,
+                         @NotNull final NavigableMap<Long, FileTable> tables) throws IOException {
+        for (final var log : logs.entrySet()) {
+            if (!tables.containsKey(log.getKey())) {
+                final MemTable table = new MemTable();
+                WriteAheadLog.replay(log.getValue(), table);
+                final Iterator<Cell> data = table.iterator(nullBuffer);
+                if (data.hasNext()) {
+                    final FileTable flushed = flush(data, table.rows(), log.getKey());
+                    manifest.apply(Collections.emptyList(), Collections.singletonList(flushed));
+                    install(files.add(flushed));
+                }
+            }
+            Files.delete(log.getValue().toPath());
+        }
+    }
+
+    /**
+     * Alive records from the key, the tables they are read from are pinned until the iterator is closed
+     * or exhausted.
+     */
     @NotNull
     @Override
-    public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
-        final Iterator<Cell> alive = Iterators.filter(getIterator(from, FileTable.Order.DIRECT),
-                cell -> !cell.getValue().isRemoved());
-        return Iterators.transform(alive, cell -> Record.of(cell.getKey(), cell.getValue().getData()));
+    public CloseableIterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        final long now = System.currentTimeMillis();
+        final CloseableIterator<Cell> cells = getIterator(from, FileTable.Order.DIRECT);
+        final Iterator<Cell> alive = Iterators.filter(cells,
+                cell -> !cell.getValue().isRemoved() && !cell.getValue().isExpired(now));
+        return CloseableIterator.of(Iterators.transform(alive,
+                cell -> Record.of(cell.getKey(), cell.getValue().getData())), cells);
+    }
+
+    @NotNull
+    @Override
+    public CloseableIterator<Record> range(@NotNull final ByteBuffer from,
+                                           @Nullable final ByteBuffer to) throws IOException {
+        if (to == null) {
+            return iterator(from);
+        }
+        if (from.compareTo(to) > 0) {
+            return CloseableIterator.of(Iters.empty());
+        }
+        final CloseableIterator<Record> records = iterator(from);
+        return CloseableIterator.of(Iters.until(records, Record.of(to, ByteBuffer.allocate(0))), records);
+    }
+
+    /**
+     * Point lookup instead of a scan, the tables are released before it returns
+     * rather than with an abandoned iterator.
+     */
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException {
+        final Value value = findCell(key).getValue();
+        if (value.isRemoved()) {
+            throw new NoSuchElementException("Not found");
+        }
+        return value.getData();
     }
 
+    /**
+     * Flush the memory tables and merge all the tables on disk into the bottom level.
+     *
+     * @throws IOException if the tables can't be merged or a table failed to flush
+     */
     @Override
     public void compact() throws IOException {
-        memTable.compact();
         try {
-            worker.join();
+            memTable.awaitFlushed(memTable.flush());
+            compactions.submit(() -> {
+                final CompactionTask task = compaction.major(files);
+                if (task != null) {
+                    compact(task);
+                }
+                return null;
+            }).get();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IOException("Compaction failed", e.getCause());
         }
     }
 
-    private Iterator<Cell> getCellsIterator(@NotNull final List<Iterator<Cell>> iterators) {
+    static Iterator<Cell> getCellsIterator(@NotNull final List<Iterator<Cell>> iterators) {
         final Iterator<Cell> mergedCells = Iterators.mergeSorted(iterators, Cell.COMPARATOR);
         return Iters.collapseEquals(mergedCells, Cell::getKey);
     }
@@ -96,29 +296,144 @@ public final class LSMDao implements ExtendedDAO {
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
         memTable.upsert(key, value);
+        rowCache.invalidate(key);
+        missCache.invalidate(key);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value, final long ttl)
+            throws IOException {
+        memTable.upsert(key, value, ttl);
+        rowCache.invalidate(key);
+        missCache.invalidate(key);
     }
 
-    private void flush(@NotNull final Iterator<Cell> data, final long generation) throws IOException {
+    private FileTable flush(@NotNull final Iterator<Cell> data,
+                            final long rows,
+                            final long generation) throws IOException {
         final File tmp = new File(base, PREFIX + generation + TEMP);
-        FileTable.write(data, tmp);
+        FileTable.write(data, tmp, config, 0, Long.MAX_VALUE, rows, writeBuffers);
         final File dest = new File(base, PREFIX + generation + SUFFIX);
         Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
-        files.put(generation, new FileTable(dest));
+        return new FileTable(dest, generation, blockCache);
+    }
+
+    /**
+     * Flushes complete in any order, but a table is published only after all the older ones,
+     * otherwise a newer flushed table would be shadowed by an older memory table still pending.
+     */
+    private void publish(@NotNull final FileTable table) throws IOException {
+        synchronized (flushed) {
+            flushed.put(table.generation(), table);
+            while (!flushed.isEmpty() && flushed.firstKey() == memTable.oldestPending()) {
+                final FileTable next = flushed.pollFirstEntry().getValue();
+                synchronized (filesLock) {
+                    manifest.apply(Collections.emptyList(), Collections.singletonList(next));
+                    install(files.add(next));
+                }
+                memTable.flushed(next.generation());
+            }
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (compactionScheduled.compareAndSet(false, true)) {
+            compactions.execute(() -> {
+                compactionScheduled.set(false);
+                try {
+                    for (CompactionTask task = compaction.pick(files); task != null; task = compaction.pick(files)) {
+                        compact(task);
+                    }
+                } catch (IOException e) {
+                    log.error("compaction", e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Merge the inputs of the task into new tables, publish them in place of the inputs at once
+     * and delete the inputs.
+     */
+    private void compact(@NotNull final CompactionTask task) throws IOException {
+        final FileTable first = task.inputs().get(0);
+        if (task.isTrivial()) {
+            first.moveTo(task.level());
+            synchronized (filesLock) {
+                manifest.apply(task.inputs(), task.inputs());
+                install(files.replace(task.inputs(), task.inputs()));
+            }
+            return;
+        }
+
+        // Flushes install new sets meanwhile, the one merged against must stay mapped
+        final TableSet tables = pin();
+        final List<FileTable> outputs;
+        try {
+            outputs = compactor.merge(task, tables);
+        } finally {
+            tables.release();
+        }
+        // Inputs stay on disk until the outputs are logged
+        manifest.apply(task.inputs(), outputs);
+        for (final FileTable table : task.inputs()) {
+            table.retire(new File(base, PREFIX + table.generation() + RETIRED));
+        }
+        synchronized (filesLock) {
+            install(files.replace(task.inputs(), outputs));
+        }
+    }
+
+    /**
+     * Make the set current, the previous one is released and its tables left out are gone with its last reader.
+     */
+    private void install(@NotNull final TableSet next) {
+        final TableSet previous = files;
+        files = next;
+        previous.release();
+    }
+
+    /**
+     * Pin the current set of tables, it must be released after reading.
+     */
+    private TableSet pin() {
+        while (true) {
+            final TableSet current = files;
+            if (current.acquire()) {
+                return current;
+            }
+            // Replaced and released meanwhile, there is a newer one
+        }
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
         memTable.remove(key);
+        rowCache.invalidate(key);
+        missCache.invalidate(key);
     }
 
     @Override
     public void close() throws IOException {
         memTable.close();
         try {
-            worker.join();
+            for (final Worker worker : workers) {
+                worker.join();
+            }
+            compactions.shutdown();
+            compactions.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
+        compactor.close();
+        writeBuffers.close();
+        wal.close();
+        synchronized (filesLock) {
+            install(new TableSet(Collections.emptyList()));
+        }
+        manifest.close();
+        // The tables not flushed are in the log, but the caller must know they are not in tables
+        memTable.checkFlushing();
     }
 
     /**
@@ -128,90 +443,153 @@ public final class LSMDao implements ExtendedDAO {
      * @return iterator with record.
      * @throws IOException exception.
      */
-    public Iterator<Record> decreasingIterator(@NotNull final ByteBuffer from) throws IOException {
-        final Iterator<Cell> allCellsD = getIterator(from, FileTable.Order.REVERSE);
-        final Iterator<Cell> aliveD = Iterators.filter(allCellsD, cell -> !cell.getValue().isRemoved());
-        return Iterators.transform(aliveD, cell -> Record.of(cell.getKey(), cell.getValue().getData()));
+    public CloseableIterator<Record> decreasingIterator(@NotNull final ByteBuffer from) throws IOException {
+        final CloseableIterator<Cell> allCellsD = getIterator(from, FileTable.Order.REVERSE);
+        final long now = System.currentTimeMillis();
+        final Iterator<Cell> aliveD = Iterators.filter(allCellsD,
+                cell -> !cell.getValue().isRemoved() && !cell.getValue().isExpired(now));
+        return CloseableIterator.of(Iterators.transform(aliveD,
+                cell -> Record.of(cell.getKey(), cell.getValue().getData())), allCellsD);
     }
 
-    private Iterator<Cell> getIterator(@NotNull final ByteBuffer from,
-                                       @NotNull final FileTable.Order order)
+    private CloseableIterator<Cell> getIterator(@NotNull final ByteBuffer from,
+                                                @NotNull final FileTable.Order order)
             throws IOException {
         final List<Iterator<Cell>> filesIterators = new ArrayList<>();
 
-        for (final FileTable fileTable : files.values()) {
-            filesIterators.add(order == FileTable.Order.DIRECT
-                    ? fileTable.iterator(from)
-                    : fileTable.decreasingIterator(from));
-        }
-
-        filesIterators.add(order == FileTable.Order.DIRECT
+        // Memory first: a flushed table is published before it leaves memory
+        final CloseableIterator<Cell> memory = order == FileTable.Order.DIRECT
                 ? memTable.iterator(from)
-                : memTable.decreasingIterator(from));
-        return getCellsIterator(filesIterators);
+                : CloseableIterator.of(memTable.decreasingIterator(from));
+        filesIterators.add(memory);
+
+        final TableSet tables = pin();
+        final CloseableIterator<Cell> files;
+        try {
+            for (final FileTable fileTable : tables.all()) {
+                filesIterators.add(order == FileTable.Order.DIRECT
+                        ? fileTable.iterator(from)
+                        : fileTable.decreasingIterator(from));
+            }
+            files = tables.releasing(getCellsIterator(filesIterators));
+        } catch (RuntimeException e) {
+            tables.release();
+            memory.close();
+            throw e;
+        }
+        return CloseableIterator.of(files, List.of(files, memory));
     }
 
+    @NotNull
     @Override
-    public Cell getCell(@NotNull final ByteBuffer key) throws IOException {
-        final Iterator<Cell> iter = getIterator(key, FileTable.Order.DIRECT);
-        if (!iter.hasNext()) {
-            throw new NoSuchElementException("Not found");
+    public Cell findCell(@NotNull final ByteBuffer key) throws IOException {
+        final Cell cached = rowCache.get(key);
+        if (cached != null) {
+            return expire(cached);
+        }
+        if (missCache.contains(key)) {
+            return Cell.ABSENT;
+        }
+        // Writes invalidate the caches after they are applied, so the stamps go before the lookup
+        final long stamp = rowCache.stamp(key);
+        final long missStamp = missCache.stamp(key);
+        Cell cell = memTable.get(key);
+        if (cell == null) {
+            final TableSet tables = pin();
+            try {
+                cell = tables.get(key);
+            } finally {
+                tables.release();
+            }
+        }
+        if (cell == null) {
+            missCache.add(key, missStamp);
+            return Cell.ABSENT;
         }
+        rowCache.put(cell, stamp);
+        return expire(cell);
+    }
 
-        final Cell next = iter.next();
-        if (next.getKey().equals(key)) {
-            return next;
-        } else {
-            throw new NoSuchElementException("Not found");
+    /**
+     * An expired value is seen as a tombstone of its write, so replicas still agree on what is newer.
+     */
+    private static Cell expire(@NotNull final Cell cell) {
+        return cell.getValue().isExpired(System.currentTimeMillis())
+                ? new Cell(cell.getKey(), cell.getValue().expire())
+                : cell;
+    }
+
+    /**
+     * Nothing is rotated or flushed for a snapshot. The sequence number is taken while no table moves
+     * from memory to disk: a table on disk keeps only the newest cell of a key, so a table published
+     * after the number could have lost the cell the snapshot needs, while the tables published before it
+     * hold older writes only. The writes older than the number are waited for, then the memory tables
+     * and the tables on disk are pinned together.
+     */
+    @NotNull
+    @Override
+    public Snapshot snapshot() {
+        synchronized (flushed) {
+            final long sequence = snapshots.open();
+            memTable.awaitWriters();
+            return new LSMSnapshot(memTable.pin(), pin(), snapshots, sequence);
         }
     }
 
+    /**
+     * Cache of decoded blocks, for its hit rate.
+     *
+     * @return block cache of the storage
+     */
+    BlockCache blockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Cache of the latest cells of hot keys, for its hit rate.
+     *
+     * @return row cache of the storage
+     */
+    RowCache rowCache() {
+        return rowCache;
+    }
+
+    /**
+     * Cache of recently missed keys, for its hit count.
+     *
+     * @return miss cache of the storage
+     */
+    MissCache missCache() {
+        return missCache;
+    }
+
     class Worker extends Thread {
-        Worker() {
-            super("worker");
+        Worker(final int number) {
+            super("worker-" + number);
         }
 
         @Override
         public void run() {
             boolean poisoned = false;
-            boolean compacting = false;
             while (!poisoned && !isInterrupted()) {
                 try {
                     final FlushTable table = memTable.tableToFlush();
-                    flush(table.data(), table.getGeneration());
-                    compacting = table.isCompactionTable();
-                    if (compacting) {
-                        compactFiles();
-                    }
                     poisoned = table.isPoisonPills();
-                    memTable.flushed(table.getGeneration());
+                    // Nothing is published after a failed table, the log keeps the rest
+                    if (!poisoned && !memTable.isFailed()) {
+                        publish(flush(table.data(), table.rows(), table.getGeneration()));
+                        scheduleCompaction();
+                    }
                 } catch (InterruptedException e) {
                     interrupt();
                 } catch (IOException e) {
                     log.error("flushing", e);
+                    memTable.failed(e);
+                } catch (UncheckedIOException e) {
+                    log.error("flushing", e);
+                    memTable.failed(e.getCause());
                 }
             }
         }
     }
-
-    private void compactFiles() throws IOException {
-        final List<Iterator<Cell>> filesIterators = new ArrayList<>();
-
-        for (final FileTable fileTable : files.values()) {
-            filesIterators.add(fileTable.iterator(ByteBuffer.allocate(0)));
-        }
-
-        final Iterator<Cell> alive = getCellsIterator(filesIterators);
-        final File tmp = new File(base, PREFIX + 1 + TEMP);
-        FileTable.write(alive, tmp);
-
-        for (final FileTable fileTable : files.values()) {
-            fileTable.deleteFileTable();
-        }
-
-        files.clear();
-        final File dest = new File(base, PREFIX + 1 + SUFFIX);
-        Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
-        files.put(0L, new FileTable(dest));
-    }
 }
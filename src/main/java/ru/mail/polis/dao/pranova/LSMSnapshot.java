@@ -0,0 +1,128 @@
+package ru.mail.polis.dao.pranova;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.Record;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Snapshot of {@link LSMDao}: the memory tables, the tables on disk and a sequence number.
+ * The memory tables keep taking writes, but they keep the versions of a key the open snapshots read,
+ * so they are read as they were at the sequence number. The tables on disk are pinned with
+ * the sequence number taken while none is published, so they hold older cells only; they are
+ * still read through the sequence number, as the memory tables are.
+ * The tables are pinned until the snapshot is closed, so compaction doesn't delete the tables on disk
+ * and the memory tables are not freed after flush.
+ */
+final class LSMSnapshot implements Snapshot {
+    private final SnapshotSequences snapshots;
+    private final long sequence;
+    private final long now;
+    private volatile List<RetainedTable> memTables;
+    private volatile TableSet files;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * View of the tables.
+     *
+     * @param memTables is memory tables, newest first, pinned for the snapshot.
+     * @param files     is tables on disk, pinned for the snapshot.
+     * @param snapshots is sequence numbers of the open snapshots, the sequence is closed with the snapshot.
+     * @param sequence  is timestamp of the snapshot.
+     */
+    LSMSnapshot(@NotNull final List<RetainedTable> memTables,
+                @NotNull final TableSet files,
+                @NotNull final SnapshotSequences snapshots,
+                final long sequence) {
+        this.memTables = memTables;
+        this.files = files;
+        this.snapshots = snapshots;
+        this.sequence = sequence;
+        this.now = System.currentTimeMillis();
+    }
+
+    @Override
+    public long sequence() {
+        return sequence;
+    }
+
+    private boolean visible(@NotNull final Cell cell) {
+        return cell.getValue().getTimeStamp() <= sequence;
+    }
+
+    @NotNull
+    @Override
+    public CloseableIterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        final List<Iterator<Cell>> iterators = new ArrayList<>();
+        for (final Table table : memTables) {
+            iterators.add(table.iterator(from, sequence));
+        }
+        for (final FileTable table : files.all()) {
+            iterators.add(Iterators.filter(table.iterator(from), this::visible));
+        }
+        final Iterator<Cell> alive = Iterators.filter(LSMDao.getCellsIterator(iterators),
+                cell -> !cell.getValue().isRemoved() && !cell.getValue().isExpired(now));
+        // The tables are pinned by the snapshot, not by its iterators
+        return CloseableIterator.of(Iterators.transform(alive,
+                cell -> Record.of(cell.getKey(), cell.getValue().getData())));
+    }
+
+    @NotNull
+    @Override
+    public Cell findCell(@NotNull final ByteBuffer key) throws IOException {
+        Cell cell = null;
+        for (final Table table : memTables) {
+            cell = table.get(key, sequence);
+            if (cell != null) {
+                break;
+            }
+        }
+        if (cell == null) {
+            cell = files.get(key);
+            if (cell != null && !visible(cell)) {
+                cell = older(key);
+            }
+        }
+        if (cell == null) {
+            return Cell.ABSENT;
+        }
+        return cell.getValue().isExpired(now) ? new Cell(cell.getKey(), cell.getValue().expire()) : cell;
+    }
+
+    /**
+     * The newest visible cell when the newest one on disk was written after the snapshot,
+     * every table keeps a single cell of a key, so all of them are asked.
+     */
+    private Cell older(@NotNull final ByteBuffer key) throws IOException {
+        Cell result = null;
+        for (final FileTable table : files.all()) {
+            final Cell cell = table.get(key);
+            if (cell != null && visible(cell) && (result == null || Cell.COMPARATOR.compare(cell, result) < 0)) {
+                result = cell;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            final TableSet pinned = files;
+            final List<RetainedTable> pinnedMemTables = memTables;
+            memTables = Collections.emptyList();
+            files = TableSet.EMPTY;
+            snapshots.close(sequence);
+            pinned.release();
+            for (final RetainedTable table : pinnedMemTables) {
+                table.release();
+            }
+        }
+    }
+}
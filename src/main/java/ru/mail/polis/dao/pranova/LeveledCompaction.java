@@ -0,0 +1,127 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Picks the next compaction for the leveled layout.
+ * Level 0 is compacted once it has too many tables, level N once it outgrows
+ * levelOneSize * levelMultiplier ^ (N - 1). The level with the highest score goes first.
+ */
+final class LeveledCompaction implements CompactionStrategy {
+    static final int MAX_LEVELS = 7;
+
+    private final int levelZeroFiles;
+    private final long levelOneSize;
+    private final int levelMultiplier;
+    private final ByteBuffer[] cursors = new ByteBuffer[MAX_LEVELS];
+
+    LeveledCompaction(@NotNull final LSMConfig config) {
+        assert config.levelZeroFiles > 0 && config.levelOneSize > 0 && config.levelMultiplier > 1;
+        this.levelZeroFiles = config.levelZeroFiles;
+        this.levelOneSize = config.levelOneSize;
+        this.levelMultiplier = config.levelMultiplier;
+    }
+
+    private double score(@NotNull final TableSet tables, final int level) {
+        if (level == 0) {
+            return (double) tables.level(0).size() / levelZeroFiles;
+        }
+        double limit = levelOneSize;
+        for (int i = 1; i < level; i++) {
+            limit *= levelMultiplier;
+        }
+        return tables.levelSize(level) / limit;
+    }
+
+    /**
+     * Next compaction to run.
+     *
+     * @param tables is current snapshot.
+     * @return the task or null if every level fits its limit
+     */
+    @Nullable
+    @Override
+    public CompactionTask pick(@NotNull final TableSet tables) {
+        int level = -1;
+        double best = 1.0;
+        for (int i = 0; i < Math.min(tables.depth(), MAX_LEVELS - 1); i++) {
+            final double score = score(tables, i);
+            if (score >= best) {
+                best = score;
+                level = i;
+            }
+        }
+        if (level < 0) {
+            return null;
+        }
+        final List<FileTable> inputs = level == 0 ? tables.level(0) : expand(tables, level, next(tables, level));
+        final List<FileTable> result = new ArrayList<>(inputs);
+        result.addAll(tables.overlapping(level + 1, first(inputs), last(inputs)));
+        return new CompactionTask(result, level + 1, result.size() == 1);
+    }
+
+    /**
+     * Round robin over the keys of the level, so that every table is pushed down eventually.
+     */
+    private FileTable next(@NotNull final TableSet tables, final int level) {
+        final List<FileTable> candidates = tables.level(level);
+        FileTable table = candidates.get(0);
+        if (cursors[level] != null) {
+            for (final FileTable candidate : candidates) {
+                if (candidate.firstKey().compareTo(cursors[level]) > 0) {
+                    table = candidate;
+                    break;
+                }
+            }
+        }
+        // The table may be compacted away and unmapped before the next pick
+        final ByteBuffer last = table.lastKey();
+        cursors[level] = ByteBuffer.allocate(last.remaining()).put(last).flip();
+        return table;
+    }
+
+    /**
+     * Tables of a level overlapping the chosen one must go down together, or an older version
+     * of a key could be left above the newer one.
+     */
+    private static List<FileTable> expand(@NotNull final TableSet tables,
+                                          final int level,
+                                          @NotNull final FileTable table) {
+        final Set<FileTable> inputs = new LinkedHashSet<>();
+        inputs.add(table);
+        int size;
+        do {
+            size = inputs.size();
+            final List<FileTable> current = new ArrayList<>(inputs);
+            inputs.addAll(tables.overlapping(level, first(current), last(current)));
+        } while (inputs.size() > size);
+        return new ArrayList<>(inputs);
+    }
+
+    private static ByteBuffer first(@NotNull final List<FileTable> tables) {
+        ByteBuffer result = tables.get(0).firstKey();
+        for (final FileTable table : tables) {
+            if (table.firstKey().compareTo(result) < 0) {
+                result = table.firstKey();
+            }
+        }
+        return result;
+    }
+
+    private static ByteBuffer last(@NotNull final List<FileTable> tables) {
+        ByteBuffer result = tables.get(0).lastKey();
+        for (final FileTable table : tables) {
+            if (table.lastKey().compareTo(result) > 0) {
+                result = table.lastKey();
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,143 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fast LZ77 codec in the spirit of LZ4 block format.
+ * A sequence is a token (literal length and match length nibbles), extra literal length bytes,
+ * literals, little-endian 2-byte match offset and extra match length bytes.
+ * The last sequence consists of literals only.
+ */
+final class LzCodec implements Codec {
+    static final int ID = 2;
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 12;
+    private static final int NIBBLE = 0xF;
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer compress(@NotNull final ByteBuffer raw) {
+        final byte[] src = new byte[raw.remaining()];
+        raw.duplicate().get(src);
+        final byte[] dst = new byte[src.length];
+        final int[] table = new int[1 << HASH_BITS];
+        int anchor = 0;
+        int out = 0;
+        int i = 0;
+        while (i + MIN_MATCH <= src.length - LAST_LITERALS) {
+            final int sequence = intAt(src, i);
+            final int hash = (sequence * -1640531535) >>> (Integer.SIZE - HASH_BITS);
+            final int ref = table[hash] - 1;
+            table[hash] = i + 1;
+            if (ref < 0 || i - ref > MAX_OFFSET || intAt(src, ref) != sequence) {
+                i++;
+                continue;
+            }
+            int length = MIN_MATCH;
+            while (i + length < src.length - LAST_LITERALS && src[ref + length] == src[i + length]) {
+                length++;
+            }
+            out = sequence(src, anchor, i - anchor, i - ref, length, dst, out);
+            if (out < 0) {
+                return null;
+            }
+            i += length;
+            anchor = i;
+        }
+        out = sequence(src, anchor, src.length - anchor, 0, 0, dst, out);
+        return out < 0 || out >= src.length ? null : ByteBuffer.wrap(dst, 0, out).slice();
+    }
+
+    /**
+     * Emit a sequence.
+     *
+     * @return new output position or -1 if the output doesn't fit
+     */
+    private static int sequence(final byte[] src, final int from, final int literals,
+                                final int offset, final int match, final byte[] dst, final int position) {
+        final int extra = match == 0 ? 0 : match - MIN_MATCH;
+        int out = position;
+        if (out + 1 + literals / 255 + 1 + literals + 2 + extra / 255 + 1 > dst.length) {
+            return -1;
+        }
+        dst[out++] = (byte) ((Math.min(literals, NIBBLE) << 4) | Math.min(extra, NIBBLE));
+        out = length(literals, dst, out);
+        System.arraycopy(src, from, dst, out, literals);
+        out += literals;
+        if (match == 0) {
+            return out;
+        }
+        dst[out++] = (byte) offset;
+        dst[out++] = (byte) (offset >>> 8);
+        return length(extra, dst, out);
+    }
+
+    private static int length(final int length, final byte[] dst, final int position) {
+        int out = position;
+        if (length >= NIBBLE) {
+            int rest = length - NIBBLE;
+            while (rest >= 255) {
+                dst[out++] = (byte) 255;
+                rest -= 255;
+            }
+            dst[out++] = (byte) rest;
+        }
+        return out;
+    }
+
+    private static int intAt(final byte[] src, final int i) {
+        return (src[i] & 0xFF) | ((src[i + 1] & 0xFF) << 8) | ((src[i + 2] & 0xFF) << 16) | ((src[i + 3] & 0xFF) << 24);
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer decompress(@NotNull final ByteBuffer compressed, final int rawSize) {
+        final ByteBuffer in = compressed.duplicate();
+        final byte[] dst = new byte[rawSize];
+        int out = 0;
+        while (in.hasRemaining()) {
+            final int token = in.get() & 0xFF;
+            final int literals = readLength(token >>> 4, in);
+            in.get(dst, out, literals);
+            out += literals;
+            if (!in.hasRemaining()) {
+                break;
+            }
+            final int offset = (in.get() & 0xFF) | ((in.get() & 0xFF) << 8);
+            final int match = readLength(token & NIBBLE, in) + MIN_MATCH;
+            if (offset == 0 || offset > out || out + match > rawSize) {
+                throw new IllegalStateException("Corrupted block");
+            }
+            for (int i = 0; i < match; i++) {
+                dst[out] = dst[out - offset];
+                out++;
+            }
+        }
+        if (out != rawSize) {
+            throw new IllegalStateException("Corrupted block");
+        }
+        return ByteBuffer.wrap(dst);
+    }
+
+    private static int readLength(final int nibble, final ByteBuffer in) {
+        int length = nibble;
+        if (nibble == NIBBLE) {
+            int next;
+            do {
+                next = in.get() & 0xFF;
+                length += next;
+            } while (next == 255);
+        }
+        return length;
+    }
+}
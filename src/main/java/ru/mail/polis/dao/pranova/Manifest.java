@@ -0,0 +1,295 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Log of the tables of the storage, so that no table is read on startup.
+ * Every flush and compaction appends a single edit: generations of the tables gone and the new tables
+ * with their levels, sizes and key ranges. An edit is checksummed and synced before the tables
+ * it adds are published, a torn edit at the end of the log is dropped on opening,
+ * so an edit is applied entirely or not at all.
+ * The log is rewritten with the live tables only on startup and after every {@value #REWRITE} edits.
+ * A rewrite replaces the log only once the new one is synced, a failed one leaves the old log in use.
+ * Key ranges of keys longer than {@value #MAX_KEY} bytes are not logged, such a table is read to get them.
+ * Record is the payload size, the checksum and the payload: the number of removed generations and the
+ * generations, the number of added tables and for every table its generation, level, size and both keys,
+ * each as the size (-1 if not logged) and the bytes.
+ */
+final class Manifest implements Closeable {
+    static final String NAME = "MANIFEST";
+    static final String TEMP = NAME + LSMDao.TEMP;
+    private static final int HEADER = Integer.BYTES + Long.BYTES;
+    private static final int MAX_KEY = 4 * 1024;
+    static final int REWRITE = 1024;
+    private static final Logger log = LoggerFactory.getLogger(Manifest.class);
+
+    private final File base;
+    private final NavigableMap<Long, Entry> live = new TreeMap<>();
+
+    // Guarded by this
+    private FileChannel channel;
+    private int edits;
+
+    /**
+     * Read the log of the storage if there is one, nothing is written until {@link #start(Collection)}.
+     *
+     * @param base is root directory.
+     * @throws IOException if the log can't be read.
+     */
+    Manifest(@NotNull final File base) throws IOException {
+        this.base = base;
+        final File file = new File(base, NAME);
+        if (file.exists()) {
+            replay(ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.BIG_ENDIAN));
+        }
+    }
+
+    static boolean exists(@NotNull final File base) {
+        return new File(base, NAME).exists();
+    }
+
+    /**
+     * Tables of the storage in order of generations.
+     *
+     * @return the logged tables
+     */
+    Collection<Entry> entries() {
+        return Collections.unmodifiableCollection(live.values());
+    }
+
+    /**
+     * Rewrite the log with the tables the storage is opened with and start appending to it.
+     *
+     * @param tables is the live tables.
+     * @throws IOException if the log can't be written.
+     */
+    synchronized void start(@NotNull final Collection<FileTable> tables) throws IOException {
+        live.clear();
+        for (final FileTable table : tables) {
+            live.put(table.generation(), new Entry(table));
+        }
+        rewrite();
+    }
+
+    /**
+     * Log a change of the tables, it is on disk when the method returns.
+     *
+     * @param removed is tables gone, a table moved to another level is both removed and added.
+     * @param added   is new tables.
+     * @throws IOException if the edit can't be written.
+     */
+    synchronized void apply(@NotNull final Collection<FileTable> removed,
+                            @NotNull final Collection<FileTable> added) throws IOException {
+        final List<Entry> entries = new ArrayList<>(added.size());
+        for (final FileTable table : added) {
+            entries.add(new Entry(table));
+        }
+        final List<Long> generations = new ArrayList<>(removed.size());
+        for (final FileTable table : removed) {
+            generations.add(table.generation());
+        }
+        write(channel, encode(generations, entries));
+        channel.force(false);
+        for (final long generation : generations) {
+            live.remove(generation);
+        }
+        for (final Entry entry : entries) {
+            live.put(entry.generation, entry);
+        }
+        if (++edits >= REWRITE) {
+            try {
+                rewrite();
+            } catch (IOException e) {
+                // The edit is logged already, the old log takes the next ones and the rewrite is retried
+                log.error("Can't rewrite manifest", e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Replace the log with a single edit adding the live tables.
+     */
+    private void rewrite() throws IOException {
+        final File tmp = new File(base, TEMP);
+        // The new log stays open across the move, the next edits go to its end
+        final FileChannel next = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            write(next, encode(Collections.emptyList(), live.values()));
+            next.force(false);
+            Files.move(tmp.toPath(), new File(base, NAME).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            next.close();
+            throw e;
+        }
+        final FileChannel previous = channel;
+        channel = next;
+        edits = 0;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    private void replay(@NotNull final ByteBuffer records) {
+        while (records.remaining() >= HEADER) {
+            final int size = records.getInt();
+            final long checksum = records.getLong();
+            if (size < Integer.BYTES * 2 || size > records.remaining()) {
+                return;
+            }
+            final ByteBuffer record = records.slice();
+            record.limit(size);
+            if (checksum(record) != checksum) {
+                return;
+            }
+            records.position(records.position() + size);
+
+            final int removed = record.getInt();
+            for (int i = 0; i < removed; i++) {
+                live.remove(record.getLong());
+            }
+            final int added = record.getInt();
+            for (int i = 0; i < added; i++) {
+                final Entry entry = new Entry(record);
+                live.put(entry.generation, entry);
+            }
+        }
+    }
+
+    private static ByteBuffer encode(@NotNull final Collection<Long> removed,
+                                     @NotNull final Collection<Entry> added) {
+        int size = Integer.BYTES * 2 + Long.BYTES * removed.size();
+        for (final Entry entry : added) {
+            size += entry.size();
+        }
+        final ByteBuffer record = ByteBuffer.allocate(HEADER + size);
+        record.position(HEADER);
+        record.putInt(removed.size());
+        for (final long generation : removed) {
+            record.putLong(generation);
+        }
+        record.putInt(added.size());
+        for (final Entry entry : added) {
+            entry.write(record);
+        }
+        record.position(HEADER);
+        final long checksum = checksum(record.slice());
+        record.putInt(0, size);
+        record.putLong(Integer.BYTES, checksum);
+        record.position(0);
+        return record;
+    }
+
+    private static void write(@NotNull final FileChannel fc, @NotNull final ByteBuffer record) throws IOException {
+        while (record.hasRemaining()) {
+            fc.write(record);
+        }
+    }
+
+    private static long checksum(@NotNull final ByteBuffer payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        return crc.getValue();
+    }
+
+    /**
+     * Table as it is logged.
+     */
+    static final class Entry {
+        final long generation;
+        final int level;
+        final long size;
+        @Nullable
+        final ByteBuffer firstKey;
+        @Nullable
+        final ByteBuffer lastKey;
+
+        private Entry(@NotNull final FileTable table) {
+            this.generation = table.generation();
+            this.level = table.level();
+            this.size = table.sizeInBytes();
+            final ByteBuffer first = table.firstKey();
+            final ByteBuffer last = table.lastKey();
+            final boolean logged = first.remaining() <= MAX_KEY && last.remaining() <= MAX_KEY;
+            this.firstKey = logged ? copy(first) : null;
+            this.lastKey = logged ? copy(last) : null;
+        }
+
+        private Entry(@NotNull final ByteBuffer record) {
+            this.generation = record.getLong();
+            this.level = record.getInt();
+            this.size = record.getLong();
+            this.firstKey = key(record);
+            this.lastKey = key(record);
+        }
+
+        private int size() {
+            return Long.BYTES * 2 + Integer.BYTES * 3
+                    + (firstKey == null ? 0 : firstKey.remaining())
+                    + (lastKey == null ? 0 : lastKey.remaining());
+        }
+
+        private void write(@NotNull final ByteBuffer record) {
+            record.putLong(generation);
+            record.putInt(level);
+            record.putLong(size);
+            putKey(record, firstKey);
+            putKey(record, lastKey);
+        }
+
+        private static void putKey(@NotNull final ByteBuffer record, @Nullable final ByteBuffer key) {
+            if (key == null) {
+                record.putInt(-1);
+            } else {
+                record.putInt(key.remaining());
+                record.put(key.duplicate());
+            }
+        }
+
+        @Nullable
+        private static ByteBuffer key(@NotNull final ByteBuffer record) {
+            final int size = record.getInt();
+            if (size < 0) {
+                return null;
+            }
+            final ByteBuffer key = record.slice();
+            key.limit(size);
+            record.position(record.position() + size);
+            return copy(key);
+        }
+
+        private static ByteBuffer copy(@NotNull final ByteBuffer key) {
+            final ByteBuffer copy = ByteBuffer.allocate(key.remaining());
+            copy.put(key.duplicate());
+            copy.flip();
+            return copy.asReadOnlyBuffer();
+        }
+    }
+}
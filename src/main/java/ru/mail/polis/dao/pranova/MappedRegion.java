@@ -0,0 +1,153 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Part of a file mapped as a chain of windows, each of them below 2 GB.
+ * Windows are cut at the given boundaries only, so that a piece between two adjacent boundaries
+ * never crosses a window and can be sliced without copying. Offsets are file offsets.
+ * Mappings are released explicitly by {@link #unmap()} where the JDK allows it, otherwise by GC;
+ * no view of the region may be touched after that.
+ */
+final class MappedRegion {
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            final Class<?> type = Class.forName("sun.misc.Unsafe");
+            final Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Mappings are left to GC
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final long[] starts;
+    private final ByteBuffer[] windows;
+
+    private MappedRegion(@NotNull final long[] starts, @NotNull final ByteBuffer[] windows) {
+        this.starts = starts;
+        this.windows = windows;
+    }
+
+    /**
+     * Map the region.
+     *
+     * @param fc         is channel of the file.
+     * @param boundaries is ascending offsets the region may be cut at, the first is start of the region
+     *                   and the last is its end.
+     * @param window     is max size of a window.
+     * @return mapped region
+     * @throws IOException if the file can't be mapped
+     */
+    static MappedRegion map(@NotNull final FileChannel fc,
+                            @NotNull final long[] boundaries,
+                            final long window) throws IOException {
+        assert boundaries.length > 0 && window <= Integer.MAX_VALUE;
+        final long[] starts = new long[boundaries.length];
+        final ByteBuffer[] windows = new ByteBuffer[boundaries.length];
+        int count = 0;
+        int from = 0;
+        while (from < boundaries.length - 1) {
+            int to = from + 1;
+            while (to + 1 < boundaries.length && boundaries[to + 1] - boundaries[from] <= window) {
+                to++;
+            }
+            final long size = boundaries[to] - boundaries[from];
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Piece of " + size + " bytes can't be mapped");
+            }
+            starts[count] = boundaries[from];
+            windows[count] = fc.map(FileChannel.MapMode.READ_ONLY, boundaries[from], size).order(ByteOrder.BIG_ENDIAN);
+            count++;
+            from = to;
+        }
+        return new MappedRegion(Arrays.copyOf(starts, count), Arrays.copyOf(windows, count));
+    }
+
+    /**
+     * Map the region as a single window.
+     *
+     * @param fc     is channel of the file.
+     * @param offset is start of the region.
+     * @param size   is size of the region, below 2 GB.
+     * @return the mapped bytes
+     * @throws IOException if the file can't be mapped
+     */
+    static ByteBuffer map(@NotNull final FileChannel fc, final long offset, final long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Region of " + size + " bytes can't be mapped");
+        }
+        return fc.map(FileChannel.MapMode.READ_ONLY, offset, size).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Bytes of the region between two boundaries or inside such a piece.
+     *
+     * @param offset is file offset.
+     * @param size   is number of bytes.
+     * @return view of the mapped bytes
+     */
+    ByteBuffer slice(final long offset, final int size) {
+        int i = Arrays.binarySearch(starts, offset);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        assert i >= 0 && offset + size - starts[i] <= windows[i].capacity();
+        final ByteBuffer result = windows[i].duplicate();
+        final int position = (int) (offset - starts[i]);
+        result.limit(position + size);
+        result.position(position);
+        return result.slice();
+    }
+
+    /**
+     * Release all windows of the region.
+     */
+    void unmap() {
+        for (final ByteBuffer window : windows) {
+            unmap(window);
+        }
+    }
+
+    /**
+     * Release a mapping or a direct buffer at once instead of waiting for GC to collect it.
+     * Views of the buffer must not be touched afterwards, the memory behind them is gone.
+     *
+     * @param buffer is a buffer returned by map or allocateDirect, not a view of it.
+     * @return false if the mapping is left to GC
+     */
+    static boolean unmap(@NotNull final ByteBuffer buffer) {
+        if (INVOKE_CLEANER == null || !buffer.isDirect()) {
+            return false;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            return true;
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            return false;
+        }
+    }
+
+    static boolean canUnmap() {
+        return INVOKE_CLEANER != null;
+    }
+}
@@ -2,22 +2,74 @@ package ru.mail.polis.dao.pranova;
 
 import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.annotation.concurrent.ThreadSafe;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.NavigableMap;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Memory table on heap.
+ * A key keeps its versions newest first, so that a snapshot taken before an overwrite still reads
+ * the value it saw; only the newest version is flushed. An overwrite drops the older versions
+ * no open snapshot reads, and the size counts the versions kept.
+ */
 @ThreadSafe
 public class MemTable implements Table {
-    private final NavigableMap<ByteBuffer, Value> map = new ConcurrentSkipListMap<>();
-    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final NavigableMap<ByteBuffer, Version> map = new ConcurrentSkipListMap<>();
+    private final LongAdder sizeInBytes = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final SnapshotSequences snapshots;
+
+    /**
+     * Table read by no snapshot, only the newest version of a key is kept.
+     */
+    public MemTable() {
+        this(new SnapshotSequences());
+    }
+
+    /**
+     * Table keeping the versions the snapshots read.
+     *
+     * @param snapshots is sequence numbers of the open snapshots.
+     */
+    MemTable(@NotNull final SnapshotSequences snapshots) {
+        this.snapshots = snapshots;
+    }
+
+    private static final class Version {
+        final Value value;
+        @Nullable
+        final Version previous;
+
+        Version(@NotNull final Value value, @Nullable final Version previous) {
+            this.value = value;
+            this.previous = previous;
+        }
+
+        @Nullable
+        Value at(final long sequence) {
+            for (Version version = this; version != null; version = version.previous) {
+                if (version.value.getTimeStamp() <= sequence) {
+                    return version.value;
+                }
+            }
+            return null;
+        }
+    }
 
     @Override
     public long sizeInBytes() {
-        return sizeInBytes.get();
+        return sizeInBytes.sum();
+    }
+
+    @Override
+    public long rows() {
+        return rows.sum();
     }
 
     @NotNull
@@ -25,35 +77,76 @@ public class MemTable implements Table {
     public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
         return Iterators.transform(
                 map.tailMap(from).entrySet().iterator(),
-                e -> new Cell(e.getKey(), e.getValue()));
+                e -> new Cell(e.getKey(), e.getValue().value));
+    }
+
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, final long sequence) {
+        final Iterator<Cell> cells = Iterators.transform(
+                map.tailMap(from).entrySet().iterator(),
+                e -> {
+                    final Value value = e.getValue().at(sequence);
+                    return value == null ? null : new Cell(e.getKey(), value);
+                });
+        return Iterators.filter(cells, Objects::nonNull);
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        final Value previous = map.put(key, Value.of(value));
-        if (previous == null) {
-            sizeInBytes.addAndGet(key.remaining() + value.remaining());
-        } else if (previous.isRemoved()) {
-            sizeInBytes.addAndGet(value.remaining());
-        } else {
-            sizeInBytes.addAndGet(value.remaining() - previous.getData().remaining());
+        upsert(key, Value.of(value));
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        // The function may be applied more than once, only the last application counts
+        final long[] added = new long[1];
+        final boolean[] created = new boolean[1];
+        map.compute(key, (k, previous) -> {
+            created[0] = previous == null;
+            added[0] = previous == null ? key.remaining() + size(value) : size(value);
+            long shadowedAt = value.getTimeStamp();
+            Version older = previous;
+            while (older != null && !snapshots.isRead(older.value.getTimeStamp(), shadowedAt)) {
+                added[0] -= size(older.value);
+                shadowedAt = older.value.getTimeStamp();
+                older = older.previous;
+            }
+            return new Version(value, older);
+        });
+        sizeInBytes.add(added[0]);
+        if (created[0]) {
+            rows.increment();
         }
     }
 
+    private static long size(@NotNull final Value value) {
+        return value.isRemoved() ? 0 : value.getData().remaining();
+    }
+
     @Override
     public void remove(@NotNull final ByteBuffer key) {
-        final Value previous = map.put(key, Value.tombstone());
-        if (previous == null) {
-            sizeInBytes.addAndGet(key.remaining());
-        } else if (!previous.isRemoved()) {
-            sizeInBytes.addAndGet(-previous.getData().remaining());
-        }
+        upsert(key, Value.tombstone());
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) {
+        final Version version = map.get(key);
+        return version == null ? null : new Cell(key, version.value);
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key, final long sequence) {
+        final Version version = map.get(key);
+        final Value value = version == null ? null : version.at(sequence);
+        return value == null ? null : new Cell(key, value);
     }
 
     @Override
     public Iterator<Cell> decreasingIterator(@NotNull final ByteBuffer from) {
         return Iterators.transform(
                 map.headMap(from, true).descendingMap().entrySet().iterator(),
-                e -> new Cell(e.getKey(), e.getValue()));
+                e -> new Cell(e.getKey(), e.getValue().value));
     }
 }
@@ -1,138 +1,495 @@
 package ru.mail.polis.dao.pranova;
 
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.dao.Iters;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NavigableMap;
-import java.util.TreeMap;
-import java.util.ArrayList;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
+/**
+ * Current memory table and the tables waiting for flush.
+ * Writers don't lock: a writer registers in the current table, and the thread that finds it full
+ * freezes it with a CAS, waits for the registered writers to leave (grace period), rolls the log,
+ * queues the table for flush and swaps in a new table. Writers coming to a frozen table spin a little
+ * and then wait until the new one is in place, the rotating thread wakes them up.
+ * A write is stamped inside the table, so once the writers inside at some moment have left,
+ * every write older than the moment is in the tables.
+ */
 public class MemoryTablePool implements Table, Closeable {
 
-    private volatile MemTable current;
-    private final NavigableMap<Long, Table> pendingToFlushTables;
-    private long generation;
+    private volatile Active current;
+    private final Supplier<Table> tables;
+    private final NavigableMap<Long, RetainedTable> pendingToFlushTables;
+    private final AtomicLong generations;
     private final long flushLimit;
+    private final int flushers;
     private final BlockingQueue<FlushTable> flushTable;
-    private final AtomicBoolean compacting = new AtomicBoolean(false);
+    private final WriteAheadLog wal;
 
     private final AtomicBoolean stop = new AtomicBoolean();
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile IOException failure;
+
+    /**
+     * Memory table open for writes.
+     */
+    private static final class Active {
+        private static final int WRITER_SLOTS = 16;
+        private static final int SLOT_STRIDE = 16;
+        private static final int SPINS = 256;
+
+        final RetainedTable table;
+        final long generation;
+        final AtomicIntegerArray writers = new AtomicIntegerArray(WRITER_SLOTS * SLOT_STRIDE);
+        final AtomicBoolean frozen = new AtomicBoolean();
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final CountDownLatch retired = new CountDownLatch(1);
+
+        Active(@NotNull final RetainedTable table, final long generation) {
+            this.table = table;
+            this.generation = generation;
+        }
+
+        /**
+         * Writers count themselves in the slot of their thread, a slot per cache line.
+         */
+        private static int slot() {
+            return (int) (Thread.currentThread().getId() % WRITER_SLOTS) * SLOT_STRIDE;
+        }
+
+        boolean enter() {
+            final int slot = slot();
+            writers.incrementAndGet(slot);
+            if (frozen.get()) {
+                // The freezing thread may have seen the slot taken and be waiting for it
+                leave();
+                return false;
+            }
+            return true;
+        }
+
+        void leave() {
+            writers.decrementAndGet(slot());
+            if (waiting.get() > 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Stop accepting writes and wait for the writers inside.
+         *
+         * @return false if the table is already frozen by someone else
+         */
+        boolean freeze() {
+            if (!frozen.compareAndSet(false, true)) {
+                return false;
+            }
+            awaitWriters();
+            return true;
+        }
+
+        /**
+         * Wait for the writers inside to leave, a slot left empty once is enough as those coming later
+         * are newer than the call.
+         */
+        void awaitWriters() {
+            for (int slot = 0; slot < WRITER_SLOTS; slot++) {
+                final int index = slot * SLOT_STRIDE;
+                for (int spin = 0; spin < SPINS && writers.get(index) > 0; spin++) {
+                    Thread.onSpinWait();
+                }
+                if (writers.get(index) > 0) {
+                    park(index);
+                }
+            }
+        }
+
+        /**
+         * Wait for a slot to become empty. The waiter is counted before the slot is read again,
+         * so either the leaving writer sees the waiter and wakes it up or the waiter sees the slot empty.
+         */
+        private void park(final int index) {
+            waiting.incrementAndGet();
+            boolean interrupted = false;
+            try {
+                synchronized (this) {
+                    while (writers.get(index) > 0) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                }
+            } finally {
+                waiting.decrementAndGet();
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Let the writers waiting for the frozen table go, the next table is in place or the pool is stopped.
+         */
+        void retire() {
+            retired.countDown();
+        }
+
+        /**
+         * Wait until the frozen table is retired, writers look at the current table again then.
+         */
+        void awaitRetired() {
+            for (int spin = 0; spin < SPINS; spin++) {
+                if (retired.getCount() == 0) {
+                    return;
+                }
+                Thread.onSpinWait();
+            }
+            Uninterruptibles.awaitUninterruptibly(retired);
+        }
+    }
 
     /**
      * Pool tables.
      *
-     * @param startGeneration is base number of table.
-     * @param flushLimit      is max size of storage.
+     * @param generations is source of table numbers shared with compaction, the current value is taken first.
+     * @param config      is settings of the storage: flush threshold, number of flush threads and queue depth.
+     * @param wal         is log the writes go to before the memory table.
+     * @param snapshots   is sequence numbers of the open snapshots, the tables keep the versions they read.
      */
-    public MemoryTablePool(final long startGeneration, final long flushLimit) {
-        this.generation = startGeneration;
-        this.flushLimit = flushLimit;
-        this.current = new MemTable();
-        this.pendingToFlushTables = new TreeMap<>();
-        this.flushTable = new ArrayBlockingQueue<>(2);
-
+    MemoryTablePool(@NotNull final AtomicLong generations,
+                    @NotNull final LSMConfig config,
+                    @NotNull final WriteAheadLog wal,
+                    @NotNull final SnapshotSequences snapshots) {
+        assert config.flushThreads > 0 && config.flushQueueSize > 0;
+        this.generations = generations;
+        this.flushLimit = config.flushThreshold;
+        this.flushers = config.flushThreads;
+        this.wal = wal;
+        final Supplier<Table> stripe = config.offHeap
+                ? () -> new ArenaMemTable(snapshots)
+                : () -> new MemTable(snapshots);
+        this.tables = config.memTableStripes > 1 ? () -> new StripedMemTable(config.memTableStripes, stripe) : stripe;
+        this.current = new Active(new RetainedTable(tables.get()), generations.get());
+        this.pendingToFlushTables = new ConcurrentSkipListMap<>();
+        this.flushTable = new ArrayBlockingQueue<>(config.flushQueueSize);
     }
 
     @Override
-    public long sizeInBytes() {
-        lock.readLock().lock();
-        try {
-            return current.sizeInBytes();
-        } finally {
-            lock.readLock().unlock();
-        }
+    public long sizeInBytes() throws IOException {
+        return current.table.sizeInBytes();
     }
 
+    /**
+     * The current table is read before the pending ones: a table is put to pending before
+     * it stops being current, so a concurrent rotation can't hide it from the reader.
+     * Every table is pinned while it is read, a table that can't be pinned is already on disk.
+     * The tables are released once the iterator is closed.
+     */
     @NotNull
     @Override
-    public Iterator<Cell> iterator(final @NotNull ByteBuffer from) throws IOException {
-        final Collection<Iterator<Cell>> iterators;
-        lock.readLock().lock();
+    public CloseableIterator<Cell> iterator(final @NotNull ByteBuffer from) throws IOException {
+        final RetainedTable active = current.table;
+        final List<CloseableIterator<Cell>> iterators = new ArrayList<>();
         try {
-
-            iterators = new ArrayList<>(pendingToFlushTables.size() + 1);
-            for (final Table table : pendingToFlushTables.descendingMap().values()) {
-                iterators.add(table.iterator(from));
+            addIterator(iterators, active, from);
+            for (final RetainedTable table : pendingToFlushTables.descendingMap().values()) {
+                if (table != active) {
+                    addIterator(iterators, table, from);
+                }
             }
-            iterators.add(current.iterator(from));
-        } finally {
-            lock.readLock().unlock();
+        } catch (IOException | RuntimeException e) {
+            for (final CloseableIterator<Cell> iterator : iterators) {
+                iterator.close();
+            }
+            throw e;
         }
         final Iterator<Cell> mergeIterator = Iterators.mergeSorted(iterators, Cell.COMPARATOR);
-        return Iters.collapseEquals(mergeIterator, Cell::getKey);
+        return CloseableIterator.of(Iters.collapseEquals(mergeIterator, Cell::getKey), iterators);
     }
 
-    @Override
-    public void upsert(final @NotNull ByteBuffer key, final @NotNull ByteBuffer value) {
-        if (stop.get()) {
-            throw new IllegalStateException("Already stopped!");
+    private static void addIterator(@NotNull final Collection<CloseableIterator<Cell>> iterators,
+                                    @NotNull final RetainedTable table,
+                                    @NotNull final ByteBuffer from) throws IOException {
+        if (!table.acquire()) {
+            return;
+        }
+        try {
+            iterators.add(table.releasing(table.iterator(from)));
+        } catch (IOException | RuntimeException e) {
+            table.release();
+            throw e;
         }
-        current.upsert(key, value);
-        enqueueFlush();
     }
 
+    @Nullable
     @Override
-    public void remove(final @NotNull ByteBuffer key) {
-        if (stop.get()) {
-            throw new IllegalStateException("Already stopped!");
+    public Cell get(@NotNull final ByteBuffer key) throws IOException {
+        final Cell cell = get(current.table, key);
+        if (cell != null) {
+            return cell;
+        }
+        for (final RetainedTable table : pendingToFlushTables.descendingMap().values()) {
+            final Cell pending = get(table, key);
+            if (pending != null) {
+                return pending;
+            }
         }
-        current.remove(key);
-        enqueueFlush();
+        return null;
     }
 
-    private void enqueueFlush() {
-        FlushTable currentFlushTable = null;
-        lock.writeLock().lock();
+    @Nullable
+    private static Cell get(@NotNull final RetainedTable table, @NotNull final ByteBuffer key) throws IOException {
+        if (!table.acquire()) {
+            return null;
+        }
         try {
+            return table.get(key);
+        } finally {
+            table.release();
+        }
+    }
 
-            if (current.sizeInBytes() > flushLimit) {
-                currentFlushTable = new FlushTable(generation,
-                        current.iterator(LSMDao.nullBuffer),
-                        false);
-                pendingToFlushTables.put(generation, current);
-                generation = generation + 1;
-                current = new MemTable();
+    @Override
+    public void upsert(final @NotNull ByteBuffer key, final @NotNull ByteBuffer value) throws IOException {
+        write(key, value, Value.NEVER);
+    }
+
+    /**
+     * Put a value expiring after the given time.
+     *
+     * @param key   of the value.
+     * @param value to put.
+     * @param ttl   is time to live in milliseconds.
+     * @throws IOException if the log can't be written
+     */
+    public void upsert(final @NotNull ByteBuffer key, final @NotNull ByteBuffer value, final long ttl)
+            throws IOException {
+        write(key, value, ttl);
+    }
+
+    @Override
+    public void remove(final @NotNull ByteBuffer key) throws IOException {
+        write(key, null, Value.NEVER);
+    }
+
+    /**
+     * Stamp the value inside the table and write it.
+     *
+     * @param key  of the value.
+     * @param data is value or null for a tombstone.
+     * @param ttl  is time to live in milliseconds or {@link Value#NEVER}.
+     */
+    private void write(final @NotNull ByteBuffer key,
+                       final @Nullable ByteBuffer data,
+                       final long ttl) throws IOException {
+        checkFlushing();
+        final Active active = enter();
+        final long position;
+        try {
+            final Value value;
+            if (data == null) {
+                value = Value.tombstone();
+            } else {
+                value = ttl == Value.NEVER ? Value.of(data) : Value.of(data, ttl);
             }
+            position = wal.append(key, value);
+            active.table.upsert(key, value);
         } finally {
-            lock.writeLock().unlock();
+            active.leave();
         }
-        if (currentFlushTable != null) {
+        wal.sync(position);
+        if (active.table.sizeInBytes() > flushLimit) {
+            rotate(active);
+        }
+    }
+
+    private Active enter() {
+        while (true) {
+            if (stop.get()) {
+                throw new IllegalStateException("Already stopped!");
+            }
+            final Active active = current;
+            if (active.enter()) {
+                return active;
+            }
+            active.awaitRetired();
+        }
+    }
+
+    /**
+     * Replace the table with a new one and send it to flush, only the first caller for the table succeeds.
+     * The table is queued before it is retired, so close can't stop the flushers ahead of it
+     * and a full queue holds the writers back.
+     */
+    private void rotate(@NotNull final Active active) throws IOException {
+        if (!active.freeze()) {
+            return;
+        }
+        final long generation = generations.incrementAndGet();
+        wal.roll(generation);
+        pendingToFlushTables.put(active.generation, active.table);
+        put(new FlushTable(active.generation, active.table.iterator(LSMDao.nullBuffer), active.table.rows()));
+        current = new Active(new RetainedTable(tables.get()), generation);
+        active.retire();
+    }
+
+    private void put(@Nullable final FlushTable table) {
+        if (table != null) {
             try {
-                this.flushTable.put(currentFlushTable);
+                this.flushTable.put(table);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
         }
     }
 
+    /**
+     * Send the current table to flush regardless of its size.
+     *
+     * @return number of the last table to wait for or -1 if there is nothing to flush
+     * @throws IOException if the log can't be rolled
+     */
+    long flush() throws IOException {
+        checkFlushing();
+        final Active active = current;
+        if (active.table.sizeInBytes() > 0) {
+            rotate(active);
+            // A writer rotating the table puts it to pending before it is retired,
+            // the last table frozen by close is retired without a replacement
+            active.awaitRetired();
+            return active.generation;
+        }
+        final Map.Entry<Long, RetainedTable> last = pendingToFlushTables.lastEntry();
+        return last == null ? -1 : last.getKey();
+    }
+
+    /**
+     * Wait for the writes in progress, so that every write older than the call is in the tables.
+     */
+    void awaitWriters() {
+        current.awaitWriters();
+    }
+
+    /**
+     * Pin the current table and the tables not flushed yet, they keep changing.
+     *
+     * @return tables newest first, each must be released
+     */
+    List<RetainedTable> pin() {
+        final RetainedTable active = current.table;
+        final List<RetainedTable> pinned = new ArrayList<>();
+        if (active.acquire()) {
+            pinned.add(active);
+        }
+        for (final RetainedTable table : pendingToFlushTables.descendingMap().values()) {
+            if (table != active && table.acquire()) {
+                pinned.add(table);
+            }
+        }
+        return pinned;
+    }
+
+    /**
+     * Wait for the tables up to the generation to be flushed.
+     *
+     * @param generation is number of the last table to wait for.
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IOException          if a flush failed, the table is never flushed then
+     */
+    void awaitFlushed(final long generation) throws InterruptedException, IOException {
+        synchronized (pendingToFlushTables) {
+            while (failure == null
+                    && !pendingToFlushTables.isEmpty() && pendingToFlushTables.firstKey() <= generation) {
+                pendingToFlushTables.wait();
+            }
+        }
+        checkFlushing();
+    }
+
+    /**
+     * Stop flushing after a table failed to flush: the tables after it can't be published before it,
+     * so writes and waits for flushes fail from now on. The writes since are kept in the log
+     * and are flushed on the next start.
+     *
+     * @param cause is error of the flush.
+     */
+    void failed(@NotNull final IOException cause) {
+        synchronized (pendingToFlushTables) {
+            if (failure == null) {
+                failure = cause;
+            }
+            pendingToFlushTables.notifyAll();
+        }
+    }
+
+    boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Fail if a table failed to flush.
+     *
+     * @throws IOException with the error of the flush as the cause
+     */
+    void checkFlushing() throws IOException {
+        final IOException cause = failure;
+        if (cause != null) {
+            throw new IOException("Flush failed", cause);
+        }
+    }
+
     public FlushTable tableToFlush() throws InterruptedException {
         return flushTable.take();
     }
 
     /**
-     * Flush to disk.
+     * Oldest table sent to flush and not flushed yet, tables must be published in this order.
+     *
+     * @return number of the table or Long.MAX_VALUE if there are no such tables
+     */
+    long oldestPending() {
+        final Map.Entry<Long, RetainedTable> oldest = pendingToFlushTables.firstEntry();
+        return oldest == null ? Long.MAX_VALUE : oldest.getKey();
+    }
+
+    /**
+     * Flush to disk, the memory of the table is freed once its readers are done.
      *
      * @param generation is number of table which was thrown.
+     * @throws IOException if the log of the table can't be truncated.
      */
-    public void flushed(final long generation) {
-        lock.writeLock().lock();
-        try {
-            pendingToFlushTables.remove(generation);
-        } finally {
-            lock.writeLock().unlock();
+    public void flushed(final long generation) throws IOException {
+        final RetainedTable table;
+        synchronized (pendingToFlushTables) {
+            table = pendingToFlushTables.remove(generation);
+            pendingToFlushTables.notifyAll();
         }
+        if (table != null) {
+            table.release();
+        }
+        wal.truncate(generation);
     }
 
     @Override
@@ -140,40 +497,27 @@ public class MemoryTablePool implements Table, Closeable {
         if (!stop.compareAndSet(false, true)) {
             return;
         }
-        FlushTable flushT;
-        lock.writeLock().lock();
-        try {
-            flushT = new FlushTable(generation, current.iterator(LSMDao.nullBuffer), true, false);
-        } finally {
-            lock.writeLock().unlock();
+        Active active = current;
+        while (!active.freeze()) {
+            // The table is being rotated, the next one is the last
+            active.awaitRetired();
+            active = current;
         }
-
-        try {
-            this.flushTable.put(flushT);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+        // Writers waiting for the next table find the pool stopped
+        active.retire();
+        FlushTable flushT = null;
+        if (active.table.sizeInBytes() > 0) {
+            flushT = new FlushTable(active.generation, active.table.iterator(LSMDao.nullBuffer),
+                    active.table.rows());
+            pendingToFlushTables.put(active.generation, active.table);
+        } else {
+            active.table.release();
+            wal.truncate(active.generation);
         }
-    }
 
-    void compact() {
-        if (!compacting.compareAndSet(false, true)) {
-            return;
-        }
-        FlushTable table = null;
-        lock.writeLock().lock();
-        try {
-            table = new FlushTable(generation,
-                    current.iterator(LSMDao.nullBuffer),
-                    true, true);
-            pendingToFlushTables.put(generation, current);
-            current = new MemTable();
-        } finally {
-            lock.writeLock().unlock();
-        }
-        try {
-            flushTable.put(table);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+        put(flushT);
+        for (int i = 0; i < flushers; i++) {
+            put(FlushTable.POISON);
         }
     }
 }
@@ -0,0 +1,156 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keys recently looked up and found nowhere, so a repeated miss doesn't search every table again.
+ * The oldest keys are evicted first, a write of a key drops it.
+ * A key has a single node, the eviction queue may hold nodes of dropped keys,
+ * they are skipped and never evict a key missed again.
+ */
+final class MissCache {
+    static final MissCache NONE = new MissCache(0);
+
+    private static final int STRIPES = 64;
+
+    private final int capacity;
+    private final ConcurrentMap<ByteBuffer, Node> keys = new ConcurrentHashMap<>();
+    // Nodes in order of the misses, may still hold dropped ones
+    private final Queue<Node> order = new ConcurrentLinkedQueue<>();
+    // Keys cached
+    private final AtomicInteger size = new AtomicInteger();
+    // Nodes in the queue, dropped ones included
+    private final AtomicInteger queued = new AtomicInteger();
+    // Bumped by writes, a lookup started before a write of the key must not record its miss
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * Cache of missing keys.
+     *
+     * @param capacity is max number of the cached keys, nothing is cached if it's 0.
+     */
+    MissCache(final int capacity) {
+        assert capacity >= 0;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Whether the key is known to be missing.
+     *
+     * @param key to look for.
+     * @return true if the key missed and hasn't been written since
+     */
+    boolean contains(@NotNull final ByteBuffer key) {
+        if (capacity == 0 || !keys.containsKey(key)) {
+            return false;
+        }
+        hits.increment();
+        return true;
+    }
+
+    /**
+     * Version of the key to pass to {@link #add(ByteBuffer, long)}, taken before the lookup.
+     *
+     * @param key to be looked up.
+     * @return write stamp of the key
+     */
+    long stamp(@NotNull final ByteBuffer key) {
+        return stamps.get(stripe(key));
+    }
+
+    /**
+     * Record a key the lookup hasn't found.
+     *
+     * @param key   is missing key.
+     * @param stamp is {@link #stamp(ByteBuffer)} taken before the lookup.
+     */
+    void add(@NotNull final ByteBuffer key, final long stamp) {
+        if (capacity == 0) {
+            return;
+        }
+        final ByteBuffer copy = ByteBuffer.allocate(key.remaining());
+        copy.put(key.duplicate());
+        copy.flip();
+        final Node node = new Node(copy);
+        if (keys.putIfAbsent(copy, node) != null) {
+            return;
+        }
+        size.incrementAndGet();
+        queued.incrementAndGet();
+        order.add(node);
+        if (stamps.get(stripe(copy)) != stamp) {
+            // The key was written meanwhile
+            remove(node);
+        }
+        evict();
+    }
+
+    /**
+     * Drop the oldest keys over the capacity and the dropped nodes piling up in the queue.
+     */
+    private void evict() {
+        while (size.get() > capacity || queued.get() > capacity * 2) {
+            final Node oldest = order.poll();
+            if (oldest == null) {
+                return;
+            }
+            queued.decrementAndGet();
+            remove(oldest);
+        }
+    }
+
+    private void remove(@NotNull final Node node) {
+        if (keys.remove(node.key, node)) {
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * Forget a key being written.
+     *
+     * @param key is written key.
+     */
+    void invalidate(@NotNull final ByteBuffer key) {
+        if (capacity == 0) {
+            return;
+        }
+        stamps.incrementAndGet(stripe(key));
+        if (keys.remove(key) != null) {
+            size.decrementAndGet();
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    private static int stripe(@NotNull final ByteBuffer key) {
+        final int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Single miss of a key, a key missed again after a write gets a new one.
+     */
+    private static final class Node {
+        final ByteBuffer key;
+
+        Node(@NotNull final ByteBuffer key) {
+            this.key = key;
+        }
+    }
+}
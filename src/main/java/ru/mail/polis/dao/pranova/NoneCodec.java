@@ -0,0 +1,30 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Blocks are stored as is.
+ */
+final class NoneCodec implements Codec {
+    static final int ID = 0;
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Nullable
+    @Override
+    public ByteBuffer compress(@NotNull final ByteBuffer raw) {
+        return null;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer decompress(@NotNull final ByteBuffer compressed, final int rawSize) {
+        return compressed;
+    }
+}
@@ -0,0 +1,49 @@
+package ru.mail.polis.dao.pranova;
+
+import com.google.common.collect.AbstractIterator;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.Cleaner;
+import java.util.Iterator;
+
+/**
+ * Cells read from pinned tables, the tables are released once the cells are exhausted
+ * or the iterator is closed, whichever is first. An iterator left unclosed releases them
+ * when it becomes unreachable, so a reader that forgets to close holds the tables only until GC.
+ */
+final class ReleasingIterator extends AbstractIterator<Cell> implements CloseableIterator<Cell> {
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final Iterator<Cell> iterator;
+    private final Cleaner.Cleanable cleanable;
+
+    private ReleasingIterator(@NotNull final Iterator<Cell> iterator, @NotNull final Runnable release) {
+        this.iterator = iterator;
+        this.cleanable = CLEANER.register(this, release);
+    }
+
+    /**
+     * Release the tables with the iterator.
+     *
+     * @param iterator is cells of the tables, already pinned.
+     * @param release  drops the pin, it must not refer to the returned iterator.
+     * @return the same cells
+     */
+    static CloseableIterator<Cell> of(@NotNull final Iterator<Cell> iterator, @NotNull final Runnable release) {
+        return new ReleasingIterator(iterator, release);
+    }
+
+    @Override
+    protected Cell computeNext() {
+        if (iterator.hasNext()) {
+            return iterator.next();
+        }
+        cleanable.clean();
+        return endOfData();
+    }
+
+    @Override
+    public void close() {
+        cleanable.clean();
+    }
+}
@@ -0,0 +1,113 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Memory table counting its references, so that its memory is freed as soon as nobody reads it.
+ * The pool holds a reference until the table is flushed, readers pin the table for as long as they read.
+ */
+final class RetainedTable implements Table {
+    private final Table table;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    RetainedTable(@NotNull final Table table) {
+        this.table = table;
+    }
+
+    /**
+     * Pin the table for a reader.
+     *
+     * @return false if the table has already been released by everyone and must not be read
+     */
+    boolean acquire() {
+        while (true) {
+            final int current = refs.get();
+            if (current == 0) {
+                return false;
+            }
+            if (refs.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drop a reference, the table is freed with the last one.
+     */
+    void release() {
+        final int left = refs.decrementAndGet();
+        assert left >= 0;
+        if (left == 0) {
+            table.free();
+        }
+    }
+
+    /**
+     * Keep the table pinned until the iterator is exhausted or closed, whichever is first.
+     *
+     * @param iterator is cells read from the table, already pinned.
+     * @return the same cells
+     */
+    CloseableIterator<Cell> releasing(@NotNull final Iterator<Cell> iterator) {
+        return ReleasingIterator.of(iterator, this::release);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return table.iterator(from);
+    }
+
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, final long sequence) throws IOException {
+        return table.iterator(from, sequence);
+    }
+
+    @Override
+    public Iterator<Cell> decreasingIterator(@NotNull final ByteBuffer from) throws IOException {
+        return table.decreasingIterator(from);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        table.upsert(key, value);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final Value value) throws IOException {
+        table.upsert(key, value);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        table.remove(key);
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) throws IOException {
+        return table.get(key);
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key, final long sequence) throws IOException {
+        return table.get(key, sequence);
+    }
+
+    @Override
+    public long sizeInBytes() throws IOException {
+        return table.sizeInBytes();
+    }
+
+    @Override
+    public long rows() throws IOException {
+        return table.rows();
+    }
+}
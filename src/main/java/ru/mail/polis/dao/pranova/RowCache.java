@@ -0,0 +1,182 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The latest cells of hot keys, in front of the memory tables and the tables on disk.
+ * Eviction is CLOCK like in {@link BlockCache}, but a new cell is only admitted if its key was
+ * requested more often than the key it would evict (TinyLFU), so a scan of cold keys leaves the cache intact.
+ * Cached cells are copied to the heap and don't pin any table.
+ */
+final class RowCache {
+    static final RowCache NONE = new RowCache(0);
+
+    // Map entry, cell and buffer headers
+    private static final int OVERHEAD = 128;
+    private static final int STRIPES = 64;
+    private static final int AVERAGE_ROW = 256;
+
+    private final long capacity;
+    private final Map<ByteBuffer, Entry> entries = new ConcurrentHashMap<>();
+    private final FrequencySketch sketch;
+    // Bumped by writes, a lookup started before a write of the key must not cache what it has read
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+    // Guarded by itself
+    private final Deque<Entry> clock = new ArrayDeque<>();
+    private long size;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Cache of rows.
+     *
+     * @param capacity is max number of bytes of the cached cells, nothing is cached if it's 0.
+     */
+    RowCache(final long capacity) {
+        assert capacity >= 0;
+        this.capacity = capacity;
+        this.sketch = new FrequencySketch(capacity / AVERAGE_ROW);
+    }
+
+    /**
+     * Look up the key and count the access.
+     *
+     * @param key to look for.
+     * @return the latest cell or null if it isn't cached
+     */
+    @Nullable
+    Cell get(@NotNull final ByteBuffer key) {
+        if (capacity == 0) {
+            return null;
+        }
+        sketch.increment(key.hashCode());
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        entry.referenced = true;
+        hits.increment();
+        return entry.cell;
+    }
+
+    /**
+     * Version of the key to pass to {@link #put(Cell, long)}, taken before the lookup.
+     *
+     * @param key to be looked up.
+     * @return write stamp of the key
+     */
+    long stamp(@NotNull final ByteBuffer key) {
+        return stamps.get(stripe(key));
+    }
+
+    /**
+     * Offer the cell found by a lookup that missed.
+     *
+     * @param cell  is the latest cell of the key.
+     * @param stamp is {@link #stamp(ByteBuffer)} taken before the lookup.
+     */
+    void put(@NotNull final Cell cell, final long stamp) {
+        if (capacity == 0) {
+            return;
+        }
+        final ByteBuffer key = copy(cell.getKey());
+        final Value value = cell.getValue();
+        final Entry entry = new Entry(new Cell(key,
+                value.isRemoved() ? value : value.withData(copy(value.getData()))));
+        if (entry.size > capacity || !admit(entry)) {
+            return;
+        }
+        if (stamps.get(stripe(key)) != stamp) {
+            // The key was written meanwhile
+            entries.remove(key, entry);
+        }
+    }
+
+    private boolean admit(@NotNull final Entry entry) {
+        final ByteBuffer key = entry.cell.getKey();
+        synchronized (clock) {
+            while (size + entry.size > capacity) {
+                final Entry victim = clock.remove();
+                if (entries.get(victim.cell.getKey()) != victim) {
+                    // Invalidated or replaced
+                    size -= victim.size;
+                } else if (victim.referenced) {
+                    victim.referenced = false;
+                    clock.add(victim);
+                } else if (sketch.frequency(key.hashCode()) > sketch.frequency(victim.cell.getKey().hashCode())) {
+                    entries.remove(victim.cell.getKey(), victim);
+                    size -= victim.size;
+                } else {
+                    // The victim stays at the head of the clock
+                    clock.addFirst(victim);
+                    return false;
+                }
+            }
+            entries.put(key, entry);
+            clock.add(entry);
+            size += entry.size;
+            return true;
+        }
+    }
+
+    /**
+     * Drop the cached cell of a key being written.
+     *
+     * @param key is written key.
+     */
+    void invalidate(@NotNull final ByteBuffer key) {
+        if (capacity == 0) {
+            return;
+        }
+        stamps.incrementAndGet(stripe(key));
+        entries.remove(key);
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long sizeInBytes() {
+        synchronized (clock) {
+            return size;
+        }
+    }
+
+    private static int stripe(@NotNull final ByteBuffer key) {
+        final int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate());
+        copy.flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    private static final class Entry {
+        private final Cell cell;
+        private final long size;
+        private volatile boolean referenced;
+
+        Entry(@NotNull final Cell cell) {
+            this.cell = cell;
+            this.size = OVERHEAD + cell.getKey().remaining()
+                    + (cell.getValue().isRemoved() ? 0 : cell.getValue().getData().remaining());
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Size-tiered layout, every level is a tier of tables of about the same size.
+ * Flushed tables go to tier 0, once a tier collects tierSize runs they are all merged
+ * into one run of the next tier. A run is the output of a merge, split into disjoint tables
+ * of the target size. A tier is always older than the tiers above it,
+ * but its runs overlap, so writes are cheaper and point lookups may touch every run of the tier.
+ * The number of tiers is not limited, it grows logarithmically with the data.
+ */
+final class SizeTieredCompaction implements CompactionStrategy {
+    private final int tierSize;
+
+    SizeTieredCompaction(@NotNull final LSMConfig config) {
+        assert config.tierSize > 1;
+        this.tierSize = config.tierSize;
+    }
+
+    @Nullable
+    @Override
+    public CompactionTask pick(@NotNull final TableSet tables) {
+        for (int i = 0; i < tables.depth(); i++) {
+            final List<FileTable> tier = tables.level(i);
+            if ((i == 0 ? tier.size() : runs(tier)) >= tierSize) {
+                return new CompactionTask(tier, i + 1, false);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Number of runs in the tier, the runs are not recorded, so it is the most tables any key falls into.
+     * That is also the most tables a point lookup reads in the tier.
+     *
+     * @param tier is tables of a tier sorted by the first key.
+     * @return number of overlapping runs
+     */
+    static int runs(@NotNull final List<FileTable> tier) {
+        final PriorityQueue<ByteBuffer> ends = new PriorityQueue<>();
+        int runs = 0;
+        for (final FileTable table : tier) {
+            while (!ends.isEmpty() && ends.peek().compareTo(table.firstKey()) < 0) {
+                ends.poll();
+            }
+            ends.add(table.lastKey());
+            runs = Math.max(runs, ends.size());
+        }
+        return runs;
+    }
+}
@@ -0,0 +1,68 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+import ru.mail.polis.dao.Iters;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Consistent read-only view of the storage as of the moment it was taken.
+ * Writes done after it, flushes and compactions don't change what it reads.
+ * It keeps the tables it reads from, so it must be closed.
+ */
+public interface Snapshot extends Closeable {
+    /**
+     * Sequence number of the view, the newest timestamp of the writes it sees.
+     *
+     * @return timestamp of the snapshot
+     */
+    long sequence();
+
+    /**
+     * Alive records from the key in ascending order.
+     *
+     * @param from is the first key.
+     * @return records as of the snapshot
+     * @throws IOException if a table can't be read
+     */
+    @NotNull
+    CloseableIterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException;
+
+    /**
+     * Alive records of the range in ascending order.
+     *
+     * @param from is the first key.
+     * @param to   is the key to stop before, null for no bound.
+     * @return records as of the snapshot
+     * @throws IOException if a table can't be read
+     */
+    @NotNull
+    default CloseableIterator<Record> range(@NotNull final ByteBuffer from,
+                                            @Nullable final ByteBuffer to) throws IOException {
+        if (to == null) {
+            return iterator(from);
+        }
+        if (from.compareTo(to) > 0) {
+            return CloseableIterator.of(Iters.empty());
+        }
+        final CloseableIterator<Record> records = iterator(from);
+        return CloseableIterator.of(Iters.until(records, Record.of(to, ByteBuffer.allocate(0))), records);
+    }
+
+    /**
+     * Latest cell of the key as of the snapshot, a tombstone if the key was removed.
+     *
+     * @param key to look for.
+     * @return the cell or {@link Cell#ABSENT} if the key wasn't written before the snapshot
+     * @throws IOException if a table can't be read
+     */
+    @NotNull
+    Cell findCell(@NotNull final ByteBuffer key) throws IOException;
+
+    @Override
+    void close();
+}
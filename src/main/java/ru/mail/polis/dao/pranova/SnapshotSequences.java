@@ -0,0 +1,60 @@
+package ru.mail.polis.dao.pranova;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sequence numbers of the open snapshots, so that memory tables keep only the versions a snapshot reads.
+ * A snapshot reads the newest version of a key not newer than its number, so a version shadowed
+ * by a newer one is read only by the snapshots numbered between the two.
+ * A number is taken and registered while the opening counter is raised and writers keep every version
+ * meanwhile: a write stamped after the number looks at the registry after the number is in it.
+ */
+@ThreadSafe
+final class SnapshotSequences {
+    private final NavigableSet<Long> open = new ConcurrentSkipListSet<>();
+    private final AtomicInteger opening = new AtomicInteger();
+
+    /**
+     * Take a sequence number for a new snapshot.
+     *
+     * @return the number, it must be closed
+     */
+    long open() {
+        opening.incrementAndGet();
+        try {
+            // Time never repeats a value, so every open snapshot has a number of its own
+            final long sequence = Time.currentTime();
+            open.add(sequence);
+            return sequence;
+        } finally {
+            opening.decrementAndGet();
+        }
+    }
+
+    /**
+     * Forget the number of a closed snapshot.
+     *
+     * @param sequence is number taken by {@link #open()}.
+     */
+    void close(final long sequence) {
+        open.remove(sequence);
+    }
+
+    /**
+     * Whether an open snapshot reads the version.
+     *
+     * @param timestamp  is timestamp of the version.
+     * @param shadowedAt is timestamp of the next newer version of the key.
+     * @return false if the version may be dropped
+     */
+    boolean isRead(final long timestamp, final long shadowedAt) {
+        if (opening.get() > 0) {
+            return true;
+        }
+        final Long sequence = open.ceiling(timestamp);
+        return sequence != null && sequence < shadowedAt;
+    }
+}
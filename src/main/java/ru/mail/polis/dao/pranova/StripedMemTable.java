@@ -0,0 +1,125 @@
+package ru.mail.polis.dao.pranova;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Memory table sharded by key hash, so that concurrent writers mostly touch different tables.
+ * Every key lives in exactly one stripe, reads go to that stripe and iterators merge all of them.
+ * The stripes are rotated and flushed together as a single table.
+ */
+@ThreadSafe
+public class StripedMemTable implements Table {
+    private static final Comparator<Cell> BY_KEY_DESCENDING = Comparator.comparing(Cell::getKey).reversed();
+
+    private final Table[] stripes;
+
+    /**
+     * Create the stripes.
+     *
+     * @param stripes is number of stripes.
+     * @param tables  is factory of a stripe.
+     */
+    StripedMemTable(final int stripes, @NotNull final Supplier<Table> tables) {
+        assert stripes > 0;
+        this.stripes = new Table[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = tables.get();
+        }
+    }
+
+    private Table stripe(@NotNull final ByteBuffer key) {
+        final int hash = key.hashCode();
+        return stripes[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    @Override
+    public long sizeInBytes() throws IOException {
+        long size = 0;
+        for (final Table stripe : stripes) {
+            size += stripe.sizeInBytes();
+        }
+        return size;
+    }
+
+    @Override
+    public long rows() throws IOException {
+        long rows = 0;
+        for (final Table stripe : stripes) {
+            rows += stripe.rows();
+        }
+        return rows;
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        upsert(key, Value.of(value));
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final Value value) throws IOException {
+        stripe(key).upsert(key, value);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        upsert(key, Value.tombstone());
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) throws IOException {
+        return stripe(key).get(key);
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key, final long sequence) throws IOException {
+        return stripe(key).get(key, sequence);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
+        final List<Iterator<Cell>> iterators = new ArrayList<>(stripes.length);
+        for (final Table stripe : stripes) {
+            iterators.add(stripe.iterator(from));
+        }
+        return Iterators.mergeSorted(iterators, Cell.COMPARATOR);
+    }
+
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, final long sequence) throws IOException {
+        final List<Iterator<Cell>> iterators = new ArrayList<>(stripes.length);
+        for (final Table stripe : stripes) {
+            iterators.add(stripe.iterator(from, sequence));
+        }
+        return Iterators.mergeSorted(iterators, Cell.COMPARATOR);
+    }
+
+    @Override
+    public void free() {
+        for (final Table stripe : stripes) {
+            stripe.free();
+        }
+    }
+
+    @Override
+    public Iterator<Cell> decreasingIterator(@NotNull final ByteBuffer from) throws IOException {
+        final List<Iterator<Cell>> iterators = new ArrayList<>(stripes.length);
+        for (final Table stripe : stripes) {
+            iterators.add(stripe.decreasingIterator(from));
+        }
+        return Iterators.mergeSorted(iterators, BY_KEY_DESCENDING);
+    }
+}
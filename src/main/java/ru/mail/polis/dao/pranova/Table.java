@@ -1,6 +1,7 @@
 package ru.mail.polis.dao.pranova;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -16,8 +17,71 @@ public interface Table {
 
     void remove(@NotNull final ByteBuffer key) throws IOException;
 
+    /**
+     * Put the value as is, keeping its timestamp.
+     *
+     * @param key   of the value.
+     * @param value is value or tombstone.
+     * @throws IOException if the table can't be written
+     */
+    default void upsert(@NotNull final ByteBuffer key, @NotNull final Value value) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Point lookup of the latest cell of the key.
+     *
+     * @param key to look for.
+     * @return value or tombstone, null if the table knows nothing about the key
+     * @throws IOException if the table can't be read
+     */
+    @Nullable
+    Cell get(@NotNull final ByteBuffer key) throws IOException;
+
     long sizeInBytes() throws IOException;
 
+    /**
+     * Number of keys, a table written from this one sizes its Bloom filter for it.
+     *
+     * @return number of keys
+     * @throws IOException if the table can't be read
+     */
+    default long rows() throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Cells as they were at the given moment, a memory table keeps the versions snapshots read for that.
+     *
+     * @param from     is first key.
+     * @param sequence is timestamp of the moment.
+     * @return the newest cell of every key not newer than the moment
+     * @throws IOException if the table can't be read
+     */
+    default Iterator<Cell> iterator(@NotNull final ByteBuffer from, final long sequence) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Point lookup of the cell of the key as it was at the given moment.
+     *
+     * @param key      to look for.
+     * @param sequence is timestamp of the moment.
+     * @return the newest cell not newer than the moment, null if there is no such cell
+     * @throws IOException if the table can't be read
+     */
+    @Nullable
+    default Cell get(@NotNull final ByteBuffer key, final long sequence) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Free the memory of the table at once instead of leaving it to GC, the table must not be read afterwards.
+     */
+    default void free() {
+        // Heap memory is left to GC
+    }
+
     default Iterator<Cell> decreasingIterator(@NotNull final ByteBuffer from) throws IOException {
         throw new UnsupportedOperationException("Implement me when you get to stage 4");
     }
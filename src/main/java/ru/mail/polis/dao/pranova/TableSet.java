@@ -0,0 +1,237 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable snapshot of the tables on disk grouped by compaction level.
+ * Level 0 keeps flushed tables newest first, other levels are sorted by the first key
+ * and normally don't overlap, so a point lookup touches at most one table per level.
+ * A set holds a reference to each of its tables. The storage holds the current set and readers pin it
+ * for as long as they read, the tables of the set are released with the last of them.
+ */
+final class TableSet {
+    static final TableSet EMPTY = new TableSet(Collections.emptyList());
+
+    private static final Comparator<FileTable> BY_GENERATION =
+            Comparator.comparingLong(FileTable::generation).reversed();
+    private static final Comparator<FileTable> BY_KEY =
+            Comparator.comparing(FileTable::firstKey).thenComparing(BY_GENERATION);
+
+    private final NavigableMap<Long, FileTable> byGeneration;
+    private final List<List<FileTable>> levels;
+    private final boolean[] overlaps;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    TableSet(@NotNull final Collection<FileTable> tables) {
+        this.byGeneration = new TreeMap<>();
+        this.levels = new ArrayList<>();
+        for (final FileTable table : tables) {
+            byGeneration.put(table.generation(), table);
+            table.acquire();
+            while (levels.size() <= table.level()) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(table.level()).add(table);
+        }
+        this.overlaps = new boolean[levels.size()];
+        for (int i = 0; i < levels.size(); i++) {
+            final List<FileTable> level = levels.get(i);
+            level.sort(i == 0 ? BY_GENERATION : BY_KEY);
+            overlaps[i] = i > 0 && overlap(level);
+        }
+    }
+
+    /**
+     * Pin the set for a reader.
+     *
+     * @return false if the set has already been released by everyone and must not be read
+     */
+    boolean acquire() {
+        while (true) {
+            final int current = refs.get();
+            if (current == 0) {
+                return false;
+            }
+            if (refs.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        final int left = refs.decrementAndGet();
+        assert left >= 0;
+        if (left == 0) {
+            for (final FileTable table : byGeneration.values()) {
+                table.release();
+            }
+        }
+    }
+
+    /**
+     * Keep the set pinned until the iterator is exhausted or closed, whichever is first.
+     *
+     * @param iterator is cells read from the set, already pinned.
+     * @return the same cells
+     */
+    CloseableIterator<Cell> releasing(@NotNull final Iterator<Cell> iterator) {
+        return ReleasingIterator.of(iterator, this::release);
+    }
+
+    private static boolean overlap(@NotNull final List<FileTable> level) {
+        for (int i = 1; i < level.size(); i++) {
+            if (level.get(i - 1).lastKey().compareTo(level.get(i).firstKey()) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Point lookup, levels are searched from the top and the first level having the key wins.
+     * A level left overlapping by an interrupted compaction is scanned whole.
+     *
+     * @param key to look for.
+     * @return the newest cell or null if there is no such key on disk
+     * @throws IOException if a table can't be read
+     */
+    @Nullable
+    Cell get(@NotNull final ByteBuffer key) throws IOException {
+        for (final FileTable table : level(0)) {
+            final Cell cell = table.get(key);
+            if (cell != null) {
+                return cell;
+            }
+        }
+        for (int i = 1; i < levels.size(); i++) {
+            final Cell cell = overlaps[i] ? scan(levels.get(i), key) : search(levels.get(i), key);
+            if (cell != null) {
+                return cell;
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private static Cell scan(@NotNull final List<FileTable> level, @NotNull final ByteBuffer key) throws IOException {
+        Cell result = null;
+        for (final FileTable table : level) {
+            final Cell cell = table.get(key);
+            if (cell != null && (result == null || Cell.COMPARATOR.compare(cell, result) < 0)) {
+                result = cell;
+            }
+        }
+        return result;
+    }
+
+    @Nullable
+    private static Cell search(@NotNull final List<FileTable> level, @NotNull final ByteBuffer key)
+            throws IOException {
+        int left = 0;
+        int right = level.size() - 1;
+        while (left <= right) {
+            final int mid = left + (right - left) / 2;
+            final FileTable table = level.get(mid);
+            if (key.compareTo(table.firstKey()) < 0) {
+                right = mid - 1;
+            } else if (key.compareTo(table.lastKey()) > 0) {
+                left = mid + 1;
+            } else {
+                return table.get(key);
+            }
+        }
+        return null;
+    }
+
+    Collection<FileTable> all() {
+        return Collections.unmodifiableCollection(byGeneration.values());
+    }
+
+    boolean isEmpty() {
+        return byGeneration.isEmpty();
+    }
+
+    /**
+     * Number of levels up to the deepest non-empty one.
+     *
+     * @return depth of the tree
+     */
+    int depth() {
+        return levels.size();
+    }
+
+    List<FileTable> level(final int level) {
+        return level < levels.size() ? Collections.unmodifiableList(levels.get(level)) : Collections.emptyList();
+    }
+
+    long levelSize(final int level) {
+        long size = 0;
+        for (final FileTable table : level(level)) {
+            size += table.sizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * Tables of the level with keys inside the range.
+     *
+     * @param level to look at.
+     * @param from  is the first key of the range.
+     * @param to    is the last key of the range.
+     * @return tables intersecting the range
+     */
+    List<FileTable> overlapping(final int level, @NotNull final ByteBuffer from, @NotNull final ByteBuffer to) {
+        final List<FileTable> result = new ArrayList<>();
+        for (final FileTable table : level(level)) {
+            if (table.lastKey().compareTo(from) >= 0 && table.firstKey().compareTo(to) <= 0) {
+                result.add(table);
+            }
+        }
+        return result;
+    }
+
+    TableSet add(@NotNull final FileTable table) {
+        final List<FileTable> tables = new ArrayList<>(byGeneration.values());
+        tables.add(table);
+        return new TableSet(tables);
+    }
+
+    /**
+     * Atomic outcome of a compaction.
+     *
+     * @param removed is tables to drop.
+     * @param added   is tables to put, a table already present is placed by its new level.
+     * @return new snapshot
+     */
+    TableSet replace(@NotNull final Collection<FileTable> removed, @NotNull final Collection<FileTable> added) {
+        final Set<Long> generations = new HashSet<>();
+        for (final FileTable table : removed) {
+            generations.add(table.generation());
+        }
+        for (final FileTable table : added) {
+            generations.add(table.generation());
+        }
+        final List<FileTable> tables = new ArrayList<>(added);
+        for (final FileTable table : byGeneration.values()) {
+            if (!generations.contains(table.generation())) {
+                tables.add(table);
+            }
+        }
+        return new TableSet(tables);
+    }
+}
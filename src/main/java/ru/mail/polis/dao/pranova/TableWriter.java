@@ -0,0 +1,298 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Writes sorted cells in the block-based format of {@link FileTable}.
+ * Encoded blocks are gathered in a large direct buffer, a full buffer is written to the file
+ * in background while the other one is being filled, so the file gets one large write per buffer.
+ * The Bloom filter is sized for the number of rows the caller expects and filled as the rows come.
+ */
+final class TableWriter implements Closeable {
+    private static final int MAX_VARINT = 5;
+
+    private final FileChannel fc;
+    private final WriteBuffers buffers;
+    private final Codec codec;
+    private final int level;
+    private final LSMConfig.SyncPolicy sync;
+    private final long syncInterval;
+    private ByteBuffer filling;
+    private ByteBuffer writing;
+    private Future<?> pending;
+    private long written;
+    private long synced;
+    private ByteBuffer block = ByteBuffer.allocate(Block.SIZE * 2);
+    private int[] restartOffsets = new int[16];
+    private int restarts;
+    private int cells;
+    private ByteBuffer firstKey;
+    private ByteBuffer lastKey;
+
+    private ByteBuffer index = ByteBuffer.allocate(Block.SIZE);
+    private int blocks;
+    private long offset;
+
+    private final BloomFilter bloom;
+    private long rows;
+
+    /**
+     * Writer of a new table.
+     *
+     * @param fc      is channel of the file, the table is written from its current position.
+     * @param config  is settings of the storage: compression, buffer size and sync policy.
+     * @param level   is compaction level of the table.
+     * @param rows    is expected number of rows, the Bloom filter is sized for it.
+     * @param buffers is buffers and writing threads of the storage.
+     */
+    TableWriter(@NotNull final FileChannel fc,
+                @NotNull final LSMConfig config,
+                final int level,
+                final long rows,
+                @NotNull final WriteBuffers buffers) {
+        assert config.writeBufferSize > 0;
+        this.fc = fc;
+        this.buffers = buffers;
+        this.codec = config.codec;
+        this.level = level;
+        this.sync = config.tableSync;
+        this.syncInterval = config.syncInterval;
+        this.bloom = BloomFilter.forKeys(rows);
+        this.filling = buffers.take(config.writeBufferSize);
+        this.writing = buffers.take(config.writeBufferSize);
+    }
+
+    /**
+     * Size of the blocks written so far.
+     *
+     * @return number of bytes
+     */
+    long size() {
+        return offset;
+    }
+
+    /**
+     * Append the next cell, cells must come in key order.
+     *
+     * @param cell to write.
+     * @throws IOException if a full block can't be written
+     */
+    void add(@NotNull final Cell cell) throws IOException {
+        final ByteBuffer key = cell.getKey();
+        final Value value = cell.getValue();
+        final int shared = cells % Block.RESTART_INTERVAL == 0 ? 0 : shared(lastKey, key);
+        if (cells == 0) {
+            firstKey = key;
+        }
+        lastKey = key;
+
+        bloom.add(key);
+        rows++;
+
+        if (cells++ % Block.RESTART_INTERVAL == 0) {
+            if (restarts == restartOffsets.length) {
+                restartOffsets = Arrays.copyOf(restartOffsets, restarts * 2);
+            }
+            restartOffsets[restarts++] = block.position();
+        }
+
+        // Shared prefix length, the rest of the key
+        final ByteBuffer suffix = key.duplicate();
+        suffix.position(suffix.position() + shared);
+        final int valueSize = value.isRemoved() ? 0 : Integer.BYTES + value.getData().remaining()
+                + (value.getExpiration() == Value.NEVER ? 0 : Long.BYTES);
+        block = ensure(block, MAX_VARINT * 2 + suffix.remaining() + Long.BYTES + valueSize);
+        Block.putVarInt(block, shared);
+        Block.putVarInt(block, suffix.remaining());
+        block.put(suffix);
+        if (value.isRemoved()) {
+            block.putLong(-value.getTimeStamp());
+        } else {
+            block.putLong(value.getTimeStamp());
+            if (value.getExpiration() == Value.NEVER) {
+                block.putInt(value.getData().remaining());
+            } else {
+                block.putInt(~value.getData().remaining());
+                block.putLong(value.getExpiration());
+            }
+            block.put(value.getData());
+        }
+
+        if (block.position() >= Block.SIZE) {
+            flushBlock();
+        }
+    }
+
+    private static int shared(@NotNull final ByteBuffer previous, @NotNull final ByteBuffer key) {
+        final int mismatch = previous.mismatch(key);
+        return mismatch < 0 ? key.remaining() : mismatch;
+    }
+
+    private void flushBlock() throws IOException {
+        block = ensure(block, Integer.BYTES * (restarts + 2));
+        for (int i = 0; i < restarts; i++) {
+            block.putInt(restartOffsets[i]);
+        }
+        block.putInt(restarts);
+        block.putInt(cells);
+        block.flip();
+        final int rawSize = block.remaining();
+        final ByteBuffer compressed = codec.compress(block);
+        final int size = write(compressed == null ? block : compressed);
+
+        index = ensure(index, Integer.BYTES + firstKey.remaining() + Long.BYTES + Integer.BYTES * 2);
+        index.putInt(firstKey.remaining());
+        index.put(firstKey.duplicate());
+        index.putLong(offset);
+        index.putInt(size);
+        index.putInt(rawSize);
+
+        offset += size;
+        blocks++;
+        cells = 0;
+        restarts = 0;
+        block.clear();
+    }
+
+    /**
+     * Write the rest of the table: the last block, the Bloom filter, the index and the footer.
+     *
+     * @throws IOException if the table can't be written
+     */
+    void finish() throws IOException {
+        if (cells > 0) {
+            flushBlock();
+        }
+
+        // Bloom filter
+        final long bloomOffset = offset;
+        offset += write(bloom.toBytes());
+
+        // Index
+        final long indexOffset = offset;
+        final ByteBuffer last = lastKey == null ? LSMDao.nullBuffer : lastKey;
+        index = ensure(index, Integer.BYTES + last.remaining());
+        index.putInt(last.remaining());
+        index.put(last.duplicate());
+        index.flip();
+        offset += write(index);
+
+        // Footer
+        final ByteBuffer footer = ByteBuffer.allocate(FileTable.FOOTER_SIZE);
+        footer.putLong(bloomOffset);
+        footer.putLong(indexOffset);
+        footer.putLong(rows);
+        footer.putInt(blocks);
+        footer.putInt(bloom.getHashes());
+        footer.putInt(codec.id());
+        footer.putInt(level);
+        footer.putInt(FileTable.VERSION);
+        footer.putLong(FileTable.MAGIC);
+        footer.flip();
+        offset += write(footer);
+
+        submit();
+        await();
+        if (sync != LSMConfig.SyncPolicy.NONE) {
+            fc.force(false);
+        }
+    }
+
+    /**
+     * Copy the bytes to the buffer being filled, handing it over to the background write once full.
+     */
+    private int write(@NotNull final ByteBuffer buffer) throws IOException {
+        final int size = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            if (!filling.hasRemaining()) {
+                submit();
+            }
+            final ByteBuffer part = buffer.duplicate();
+            part.limit(part.position() + Math.min(filling.remaining(), part.remaining()));
+            buffer.position(part.limit());
+            filling.put(part);
+        }
+        return size;
+    }
+
+    private void submit() throws IOException {
+        await();
+        final ByteBuffer full = filling;
+        filling = writing;
+        writing = full;
+        full.flip();
+        written += full.remaining();
+        final boolean force = sync == LSMConfig.SyncPolicy.PERIODIC && written - synced >= syncInterval;
+        if (force) {
+            synced = written;
+        }
+        pending = buffers.submit(() -> {
+            while (full.hasRemaining()) {
+                fc.write(full);
+            }
+            full.clear();
+            if (force) {
+                fc.force(false);
+            }
+            return null;
+        });
+    }
+
+    private void await() throws IOException {
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+            pending = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing a table");
+        } catch (ExecutionException e) {
+            pending = null;
+            throw new IOException("Can't write a table", e.getCause());
+        }
+    }
+
+    /**
+     * Wait for the background write and give the buffers back for the next tables.
+     * The buffers are dropped if the write is still running after an interrupt.
+     *
+     * @throws IOException if the last write failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            await();
+        } finally {
+            if (pending == null) {
+                release();
+            }
+        }
+    }
+
+    private void release() {
+        buffers.give(filling);
+        buffers.give(writing);
+    }
+
+    private static ByteBuffer ensure(@NotNull final ByteBuffer buffer, final int extra) {
+        if (buffer.remaining() >= extra) {
+            return buffer;
+        }
+        final int capacity = Math.max(buffer.capacity() * 2, buffer.position() + extra);
+        final ByteBuffer result = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        result.put(buffer);
+        return result;
+    }
+}
@@ -1,8 +1,16 @@
 package ru.mail.polis.dao.pranova;
 
-final class Time {
-    private static int count;
-    private static long lastTime;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hybrid logical clock.
+ * Timestamp is wall clock milliseconds * 1_000_000 plus a logical counter, it never goes back:
+ * when the counter runs out or a newer remote timestamp has been observed, the clock runs
+ * ahead of the wall clock until the latter catches up. Updated with CAS only.
+ */
+public final class Time {
+    private static final long LOGICAL = 1_000_000;
+    private static final AtomicLong last = new AtomicLong();
 
     private Time() {
     }
@@ -13,13 +21,26 @@ final class Time {
      * @return time
      */
     static long currentTime() {
-        synchronized (Time.class) {
-            final var time = System.currentTimeMillis();
-            if (lastTime != time) {
-                lastTime = time;
-                count = 0;
-            }
-            return lastTime * 1_000_000 + count++;
-        }
+        final long physical = System.currentTimeMillis() * LOGICAL;
+        return last.accumulateAndGet(physical, (previous, now) -> Math.max(previous + 1, now));
+    }
+
+    /**
+     * Timestamp of the moment the given time ago by the wall clock.
+     *
+     * @param millis is age in milliseconds.
+     * @return the oldest timestamp not older than the age
+     */
+    static long ago(final long millis) {
+        return Math.max(0L, System.currentTimeMillis() - millis) * LOGICAL;
+    }
+
+    /**
+     * Move the clock past a timestamp seen on another node, so that local writes happen after it.
+     *
+     * @param timestamp is remote timestamp.
+     */
+    public static void observe(final long timestamp) {
+        last.accumulateAndGet(timestamp, Math::max);
     }
 }
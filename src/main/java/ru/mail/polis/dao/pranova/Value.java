@@ -7,19 +7,43 @@ import java.nio.ByteBuffer;
 import static ru.mail.polis.dao.pranova.Time.currentTime;
 
 public final class Value implements Comparable<Value> {
+    /**
+     * Expiration time of a value that never expires.
+     */
+    static final long NEVER = 0L;
+
     private final long timestamp;
     private final ByteBuffer data;
+    private final long expiration;
 
     Value(final long timestamp, final ByteBuffer data) {
-        assert timestamp >= 0;
+        this(timestamp, data, NEVER);
+    }
+
+    Value(final long timestamp, final ByteBuffer data, final long expiration) {
+        assert timestamp >= 0 && expiration >= 0;
+        assert data != null || expiration == NEVER;
         this.timestamp = timestamp;
         this.data = data;
+        this.expiration = expiration;
     }
 
     public static Value of(final ByteBuffer data) {
         return new Value(currentTime(), data.duplicate());
     }
 
+    /**
+     * Value living for the given time.
+     *
+     * @param data is value.
+     * @param ttl  is time to live in milliseconds.
+     * @return value expiring ttl milliseconds from now
+     */
+    public static Value of(final ByteBuffer data, final long ttl) {
+        assert ttl > 0;
+        return new Value(currentTime(), data.duplicate(), System.currentTimeMillis() + ttl);
+    }
+
     static Value tombstone() {
         return new Value(currentTime(), null);
     }
@@ -41,6 +65,44 @@ public final class Value implements Comparable<Value> {
         return data == null;
     }
 
+    /**
+     * Wall clock time the value expires at.
+     *
+     * @return milliseconds since the epoch or {@link #NEVER}
+     */
+    public long getExpiration() {
+        return expiration;
+    }
+
+    /**
+     * Whether the value has expired, a tombstone never expires.
+     *
+     * @param now is wall clock time in milliseconds.
+     * @return true if the value must be treated as removed
+     */
+    public boolean isExpired(final long now) {
+        return expiration != NEVER && expiration <= now;
+    }
+
+    /**
+     * Tombstone in place of an expired value, it keeps shadowing the older versions of the key.
+     *
+     * @return tombstone with the timestamp of the value
+     */
+    Value expire() {
+        return new Value(timestamp, null);
+    }
+
+    /**
+     * Same value over other bytes.
+     *
+     * @param data is copy of the data.
+     * @return value with the timestamp and the expiration time of this one
+     */
+    Value withData(@NotNull final ByteBuffer data) {
+        return new Value(timestamp, data, expiration);
+    }
+
     @Override
     public int compareTo(@NotNull final Value o) {
         return -Long.compare(timestamp, o.timestamp);
@@ -0,0 +1,254 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the memory tables.
+ * Every memory table generation has its own segment, so a segment can be dropped
+ * as soon as the table it protects is flushed to disk.
+ * Writers append records to a shared buffer under a short lock, the first writer waiting for its record
+ * writes the whole batch appended so far with a single write and, in sync mode, a single fsync,
+ * the others find their records already written (group commit).
+ * Record is the key size and the key, the timestamp (negative for a tombstone) and the value if present;
+ * a value with an expiration time has the complement of the key size and the time follows the timestamp.
+ */
+final class WriteAheadLog implements Closeable {
+    static final String SUFFIX = ".log";
+    private static final int HEADER = Integer.BYTES + Long.BYTES;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File base;
+    private final String prefix;
+    private final boolean sync;
+    private final Object syncLock = new Object();
+
+    // Guarded by this
+    private FileChannel channel;
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+    private long appended;
+    // Guarded by syncLock
+    private ByteBuffer spare = ByteBuffer.allocate(BUFFER_SIZE);
+    private long written;
+
+    /**
+     * Open a new segment for the memory table of the given generation.
+     *
+     * @param base       is root directory.
+     * @param prefix     is prefix of the segment names.
+     * @param generation is number of the current memory table.
+     * @param sync       whether every write waits for its record to reach the disk.
+     * @throws IOException if the segment can't be created.
+     */
+    WriteAheadLog(@NotNull final File base,
+                  @NotNull final String prefix,
+                  final long generation,
+                  final boolean sync) throws IOException {
+        this.base = base;
+        this.prefix = prefix;
+        this.sync = sync;
+        this.channel = open(generation);
+    }
+
+    private FileChannel open(final long generation) throws IOException {
+        return FileChannel.open(segment(generation).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    private File segment(final long generation) {
+        return new File(base, prefix + generation + SUFFIX);
+    }
+
+    /**
+     * Append a record to the batch of the current segment, it is written by {@link #sync(long)}.
+     *
+     * @param key   of the record.
+     * @param value of the record.
+     * @return log position to pass to {@link #sync(long)}.
+     */
+    long append(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        final ByteBuffer record = encode(key, value);
+        synchronized (this) {
+            if (pending.remaining() < record.remaining()) {
+                pending = grow(pending, record.remaining());
+            }
+            appended += record.remaining();
+            pending.put(record);
+            return appended;
+        }
+    }
+
+    /**
+     * Wait until the log is written up to the given position, and is durable in sync mode.
+     * The first waiter writes and forces the batch appended so far, the others piggyback on it.
+     *
+     * @param position returned by {@link #append(ByteBuffer, Value)}.
+     * @throws IOException if the batch can't be written or fsync fails.
+     */
+    void sync(final long position) throws IOException {
+        synchronized (syncLock) {
+            if (written >= position) {
+                return;
+            }
+            final ByteBuffer batch;
+            final FileChannel fc;
+            final long target;
+            synchronized (this) {
+                batch = pending;
+                pending = spare;
+                fc = channel;
+                target = appended;
+            }
+            spare = batch;
+            write(fc, batch);
+            if (sync) {
+                fc.force(false);
+            }
+            written = target;
+        }
+    }
+
+    /**
+     * Switch to a new segment, must not race with {@link #append(ByteBuffer, Value)}.
+     *
+     * @param generation is number of the new memory table.
+     * @throws IOException if the segment can't be switched.
+     */
+    void roll(final long generation) throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                write(channel, pending);
+                if (sync) {
+                    channel.force(false);
+                }
+                channel.close();
+                written = appended;
+                channel = open(generation);
+            }
+        }
+    }
+
+    /**
+     * Drop the segment of the flushed memory table.
+     *
+     * @param generation is number of the flushed table.
+     * @throws IOException if the segment can't be deleted.
+     */
+    void truncate(final long generation) throws IOException {
+        Files.deleteIfExists(segment(generation).toPath());
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                write(channel, pending);
+                if (sync) {
+                    channel.force(false);
+                }
+                channel.close();
+                written = appended;
+            }
+        }
+    }
+
+    /**
+     * Restore records of the segment into the table.
+     * Replay stops at the first torn or corrupted record.
+     *
+     * @param log to read.
+     * @param to  is table to fill.
+     * @throws IOException if the segment can't be read.
+     */
+    static void replay(@NotNull final File log, @NotNull final MemTable to) throws IOException {
+        final ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(log.toPath())).order(ByteOrder.BIG_ENDIAN);
+        while (records.remaining() >= HEADER) {
+            final int size = records.getInt();
+            final long checksum = records.getLong();
+            if (size < Integer.BYTES + Long.BYTES || size > records.remaining()) {
+                return;
+            }
+            final ByteBuffer record = records.slice();
+            record.limit(size);
+            if (checksum(record) != checksum) {
+                return;
+            }
+            records.position(records.position() + size);
+
+            final int keySize = record.getInt(0);
+            final ByteBuffer key = record.duplicate();
+            key.position(Integer.BYTES);
+            key.limit(key.position() + (keySize < 0 ? ~keySize : keySize));
+            final long timestamp = record.getLong(key.limit());
+            if (timestamp < 0) {
+                to.upsert(key.slice(), new Value(-timestamp, null));
+            } else {
+                final ByteBuffer value = record.duplicate();
+                value.position(key.limit() + Long.BYTES * (keySize < 0 ? 2 : 1));
+                final long expiration = keySize < 0 ? record.getLong(key.limit() + Long.BYTES) : Value.NEVER;
+                to.upsert(key.slice(), new Value(timestamp, value.slice(), expiration));
+            }
+        }
+    }
+
+    private static ByteBuffer encode(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        final boolean expiring = value.getExpiration() != Value.NEVER;
+        final int valueSize = value.isRemoved() ? 0 : value.getData().remaining() + (expiring ? Long.BYTES : 0);
+        final int size = Integer.BYTES + key.remaining() + Long.BYTES + valueSize;
+        final ByteBuffer record = ByteBuffer.allocate(HEADER + size);
+        record.position(HEADER);
+        record.putInt(expiring ? ~key.remaining() : key.remaining());
+        record.put(key.duplicate());
+        if (value.isRemoved()) {
+            record.putLong(-value.getTimeStamp());
+        } else {
+            record.putLong(value.getTimeStamp());
+            if (expiring) {
+                record.putLong(value.getExpiration());
+            }
+            record.put(value.getData());
+        }
+        record.position(HEADER);
+        final long checksum = checksum(record.slice());
+        record.putInt(0, size);
+        record.putLong(Integer.BYTES, checksum);
+        record.rewind();
+        return record;
+    }
+
+    /**
+     * Write the batch out and empty it for reuse.
+     */
+    private static void write(@NotNull final FileChannel fc, @NotNull final ByteBuffer batch) throws IOException {
+        batch.flip();
+        try {
+            while (batch.hasRemaining()) {
+                fc.write(batch);
+            }
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private static ByteBuffer grow(@NotNull final ByteBuffer batch, final int needed) {
+        final ByteBuffer grown = ByteBuffer.allocate(Math.max(batch.capacity() * 2, batch.position() + needed));
+        batch.flip();
+        grown.put(batch);
+        return grown;
+    }
+
+    private static long checksum(@NotNull final ByteBuffer record) {
+        final CRC32 crc = new CRC32();
+        crc.update(record.duplicate());
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,81 @@
+package ru.mail.polis.dao.pranova;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Direct buffers of the {@link TableWriter}s of a storage and the threads writing them to the files.
+ * The buffers of a finished table are kept for the next tables, a few of them at most;
+ * on close the threads finish the writes in progress and stop, and the kept buffers are freed.
+ */
+@ThreadSafe
+final class WriteBuffers implements Closeable {
+    private static final int SPARE_BUFFERS = 8;
+
+    private final BlockingQueue<ByteBuffer> spares = new ArrayBlockingQueue<>(SPARE_BUFFERS);
+    private final ExecutorService io = Executors.newCachedThreadPool(r -> {
+        final Thread thread = new Thread(r, "table-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A kept buffer of the size or a new one.
+     *
+     * @param size of the buffer.
+     * @return cleared buffer
+     */
+    ByteBuffer take(final int size) {
+        ByteBuffer buffer = spares.poll();
+        while (buffer != null && buffer.capacity() != size) {
+            MappedRegion.unmap(buffer);
+            buffer = spares.poll();
+        }
+        return buffer == null ? ByteBuffer.allocateDirect(size) : buffer;
+    }
+
+    /**
+     * Keep the buffer for the next tables, it is freed if there are enough kept already.
+     *
+     * @param buffer no longer used.
+     */
+    void give(@NotNull final ByteBuffer buffer) {
+        buffer.clear();
+        if (!spares.offer(buffer)) {
+            MappedRegion.unmap(buffer);
+        }
+    }
+
+    /**
+     * Run the write in background.
+     *
+     * @param write to run.
+     * @return result of the write
+     */
+    Future<?> submit(@NotNull final Callable<?> write) {
+        return io.submit(write);
+    }
+
+    @Override
+    public void close() {
+        io.shutdown();
+        try {
+            io.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ByteBuffer buffer = spares.poll(); buffer != null; buffer = spares.poll()) {
+            MappedRegion.unmap(buffer);
+        }
+    }
+}
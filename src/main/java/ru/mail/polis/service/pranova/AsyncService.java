@@ -18,16 +18,18 @@ import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.Record;
+import ru.mail.polis.dao.pranova.CloseableIterator;
 import ru.mail.polis.dao.pranova.ExtendedDAO;
+import ru.mail.polis.dao.pranova.Snapshot;
 import ru.mail.polis.service.Service;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class AsyncService extends HttpServer implements Service {
     private static final String PROXY_HEADER = "Is-Proxy: True";
@@ -74,11 +76,13 @@ public class AsyncService extends HttpServer implements Service {
      *
      * @param id      id is analog to the key in dao.
      * @param request the one of request (PUT, GET, DELETE) and the request body.
+     * @param ttl     is time to live of a PUT value in seconds, the value never expires if it's absent.
      */
     @Path("/v0/entity")
     public void entity(@Param("id") final String id, final Request request,
                        @NotNull final HttpSession session,
-                       @Param("replicas") final String replicas) throws IOException {
+                       @Param("replicas") final String replicas,
+                       @Param("ttl") final String ttl) throws IOException {
         if (id == null || id.isEmpty()) {
             session.sendError(Response.BAD_REQUEST, "Key is NULL");
             return;
@@ -97,7 +101,12 @@ public class AsyncService extends HttpServer implements Service {
                 replica.execGet(session, request, key, isProxy, replicasFactor);
                 break;
             case Request.METHOD_PUT:
-                replica.execPut(session, request, key, isProxy, replicasFactor);
+                final long ttlMillis = ttl(ttl);
+                if (ttlMillis < 0) {
+                    session.sendError(Response.BAD_REQUEST, "Invalid ttl");
+                    return;
+                }
+                replica.execPut(session, request, key, isProxy, replicasFactor, ttlMillis);
                 break;
             case Request.METHOD_DELETE:
                 replica.execDelete(session, request, key, isProxy, replicasFactor);
@@ -133,14 +142,45 @@ public class AsyncService extends HttpServer implements Service {
         final ByteBuffer startR = ByteBuffer.wrap(start.getBytes(Charsets.UTF_8));
         final ByteBuffer endR = end == null ? null : ByteBuffer.wrap(end.getBytes(Charsets.UTF_8));
         try {
-            final Iterator<Record> records = dao.range(startR, endR);
-            ((StorageSession) session).stream(records);
+            // A long scan reads a snapshot, so it neither sees later writes nor loses tables to compaction
+            final Snapshot snapshot = dao.snapshot();
+            final CloseableIterator<Record> records;
+            try {
+                records = snapshot.range(startR, endR);
+            } catch (IOException e) {
+                snapshot.close();
+                throw e;
+            }
+            try {
+                ((StorageSession) session).stream(records, snapshot);
+            } catch (IOException e) {
+                records.close();
+                snapshot.close();
+                throw e;
+            }
         } catch (IOException e) {
             session.sendError(Response.INTERNAL_ERROR, "");
             log.error("Exception", e);
         }
     }
 
+    /**
+     * Parse time to live in seconds.
+     *
+     * @return milliseconds, 0 if there is no ttl or -1 if it isn't a positive number
+     */
+    private static long ttl(final String ttl) {
+        if (ttl == null) {
+            return 0;
+        }
+        try {
+            final long seconds = Long.parseLong(ttl);
+            return seconds > 0 && seconds < Long.MAX_VALUE / 1000 ? TimeUnit.SECONDS.toMillis(seconds) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     private static HttpServerConfig createService(final int port) {
         if (port <= 1024 || port >= 65536) {
             throw new IllegalArgumentException("Invalid port");
@@ -11,11 +11,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.dao.pranova.Cell;
 import ru.mail.polis.dao.pranova.ExtendedDAO;
+import ru.mail.polis.dao.pranova.Time;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.List;
 import java.util.Comparator;
 import java.util.TreeMap;
@@ -48,7 +48,10 @@ class Replica {
     private Response get(@NotNull final ByteBuffer key) {
         final Cell cell;
         try {
-            cell = dao.getCell(key);
+            cell = dao.findCell(key);
+            if (cell == Cell.ABSENT) {
+                return new Response(Response.NOT_FOUND, Response.EMPTY);
+            }
             if (cell.getValue().isRemoved()) {
                 final Response response = new Response(Response.NOT_FOUND, Response.EMPTY);
                 response.addHeader(TIMESTAMP + cell.getValue().getTimeStamp());
@@ -59,18 +62,20 @@ class Replica {
             final Response response = new Response(Response.OK, body);
             response.addHeader(TIMESTAMP + cell.getValue().getTimeStamp());
             return response;
-        } catch (NoSuchElementException e) {
-            return new Response(Response.NOT_FOUND, Response.EMPTY);
         } catch (IOException e) {
             log.error("Can't get", e);
             return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
         }
     }
 
-    private Response put(@NotNull final ByteBuffer key, @NotNull final Request request) {
+    private Response put(@NotNull final ByteBuffer key, @NotNull final Request request, final long ttl) {
         try {
             final ByteBuffer valueBuff = ByteBuffer.wrap(request.getBody());
-            dao.upsert(key, valueBuff);
+            if (ttl > 0) {
+                dao.upsert(key, valueBuff, ttl);
+            } else {
+                dao.upsert(key, valueBuff);
+            }
             return new Response(Response.CREATED, Response.EMPTY);
         } catch (IOException ex) {
             return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
@@ -90,13 +95,14 @@ class Replica {
                            @NotNull final Request request,
                            @NotNull final ByteBuffer key,
                            final boolean isProxy,
-                           @NotNull final Replicas replicas) {
+                           @NotNull final Replicas replicas,
+                           final long ttl) {
         if (isProxy) {
-            asyncAct(session, () -> put(key, request));
+            asyncAct(session, () -> put(key, request, ttl));
             return;
         }
         executor.execute(() -> {
-            final List<Response> result = replication(() -> put(key, request), request, key, replicas);
+            final List<Response> result = replication(() -> put(key, request, ttl), request, key, replicas);
             int ack = 0;
             for (final Response current : result) {
                 if (getStatus(current).equals(Response.CREATED)) {
@@ -174,6 +180,9 @@ class Replica {
                 finalResult = entry.getKey();
             }
         }
+        if (time >= 0) {
+            Time.observe(time);
+        }
         return finalResult;
     }
 
@@ -7,23 +7,34 @@ import one.nio.http.Response;
 import one.nio.net.Socket;
 import org.jetbrains.annotations.NotNull;
 import ru.mail.polis.Record;
+import ru.mail.polis.dao.pranova.CloseableIterator;
+import ru.mail.polis.dao.pranova.Snapshot;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Iterator;
 
 public class StorageSession extends HttpSession {
     private static final byte[] CRLF = "\r\n".getBytes(Charsets.UTF_8);
     private static final byte[] NEW_LINE = "\n".getBytes(Charsets.UTF_8);
     private static final byte[] END = "0\r\n\r\n".getBytes(Charsets.UTF_8);
-    private Iterator<Record> iterator;
+    private CloseableIterator<Record> iterator;
+    private Snapshot snapshot;
 
     public StorageSession(@NotNull final Socket socket, @NotNull final HttpServer server) {
         super(socket, server);
     }
 
-    void stream(@NotNull final Iterator<Record> iterator) throws IOException {
+    /**
+     * Send the records in chunks as the socket takes them.
+     *
+     * @param iterator is records to send, closed with the snapshot.
+     * @param snapshot is view the records are read from, closed once they are sent or the session is closed.
+     * @throws IOException if the response can't be written
+     */
+    void stream(@NotNull final CloseableIterator<Record> iterator,
+                @NotNull final Snapshot snapshot) throws IOException {
         this.iterator = iterator;
+        this.snapshot = snapshot;
 
         final Response response = new Response(Response.OK);
         response.addHeader("Transfer-Encoding: chunked");
@@ -39,6 +50,7 @@ public class StorageSession extends HttpSession {
         }
 
         if (!iterator.hasNext()) {
+            release();
             write(END, 0, END.length);
 
             server.incRequestsProcessed();
@@ -72,6 +84,22 @@ public class StorageSession extends HttpSession {
         return chunk;
     }
 
+    private void release() {
+        if (iterator != null) {
+            iterator.close();
+        }
+        if (snapshot != null) {
+            snapshot.close();
+            snapshot = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+        super.close();
+    }
+
     @Override
     protected void processWrite() throws Exception {
         super.processWrite();
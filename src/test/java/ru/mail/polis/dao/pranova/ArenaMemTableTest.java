@@ -0,0 +1,116 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that {@link ArenaMemTable} behaves like {@link MemTable}.
+ */
+class ArenaMemTableTest extends TestBase {
+    private static final int KEYS = 5_000;
+
+    @Test
+    void sameAsHeap() {
+        final MemTable heap = new MemTable();
+        final ArenaMemTable arena = new ArenaMemTable();
+        final List<ByteBuffer> keys = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            keys.add(key);
+            final Value value = i % 10 == 0 ? Value.tombstone() : Value.of(randomValueBuffer());
+            heap.upsert(key, value);
+            arena.upsert(key, value);
+        }
+        for (int i = 0; i < KEYS; i += 3) {
+            final Value value = Value.of(randomValueBuffer());
+            heap.upsert(keys.get(i), value);
+            arena.upsert(keys.get(i), value);
+        }
+
+        for (final ByteBuffer key : keys) {
+            assertCell(heap.get(key), arena.get(key));
+        }
+        assertNull(arena.get(randomKeyBuffer()));
+        assertCells(heap.iterator(ByteBuffer.allocate(0)), arena.iterator(ByteBuffer.allocate(0)));
+        final ByteBuffer middle = randomKeyBuffer();
+        assertCells(heap.decreasingIterator(middle), arena.decreasingIterator(middle));
+    }
+
+    @Test
+    void largeRecord() {
+        final ArenaMemTable arena = new ArenaMemTable();
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomBuffer(ArenaMemTable.SLAB_SIZE * 2);
+        arena.upsert(randomKeyBuffer(), randomValueBuffer());
+        arena.upsert(key, value);
+        arena.upsert(randomKeyBuffer(), randomValueBuffer());
+        assertEquals(value, arena.get(key).getValue().getData());
+        assertTrue(arena.sizeInBytes() > value.remaining());
+    }
+
+    @Test
+    void cellsOutliveSlabs() {
+        final MemTable heap = new MemTable();
+        final ArenaMemTable arena = new ArenaMemTable();
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            final Value value = Value.of(randomValueBuffer());
+            heap.upsert(key, value);
+            arena.upsert(key, value);
+        }
+        final List<Cell> read = new ArrayList<>(KEYS);
+        arena.iterator(ByteBuffer.allocate(0)).forEachRemaining(read::add);
+        arena.free();
+        assertCells(heap.iterator(ByteBuffer.allocate(0)), read.iterator());
+    }
+
+    @Test
+    void freedAfterReaders() throws IOException {
+        final AtomicInteger freed = new AtomicInteger();
+        final RetainedTable table = new RetainedTable(new MemTable() {
+            @Override
+            public void free() {
+                freed.incrementAndGet();
+            }
+        });
+        table.upsert(randomKeyBuffer(), randomValueBuffer());
+        assertTrue(table.acquire());
+        final Iterator<Cell> cells = table.releasing(table.iterator(ByteBuffer.allocate(0)));
+        table.release();
+        assertEquals(0, freed.get());
+        assertTrue(cells.hasNext());
+        cells.next();
+        assertFalse(cells.hasNext());
+        assertEquals(1, freed.get());
+        assertFalse(table.acquire());
+    }
+
+    private static void assertCells(final Iterator<Cell> expected, final Iterator<Cell> actual) {
+        while (expected.hasNext()) {
+            assertTrue(actual.hasNext());
+            assertCell(expected.next(), actual.next());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    private static void assertCell(final Cell expected, final Cell actual) {
+        assertEquals(expected.getKey(), actual.getKey());
+        assertEquals(expected.getValue().getTimeStamp(), actual.getValue().getTimeStamp());
+        assertEquals(expected.getValue().isRemoved(), actual.getValue().isRemoved());
+        if (!expected.getValue().isRemoved()) {
+            assertEquals(expected.getValue().getData(), actual.getValue().getData());
+        }
+    }
+}
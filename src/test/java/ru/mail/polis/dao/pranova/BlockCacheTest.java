@@ -0,0 +1,69 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks {@link BlockCache} bounds and its use by {@link FileTable}.
+ */
+class BlockCacheTest extends TestBase {
+    @Test
+    void bounded() {
+        final BlockCache cache = new BlockCache(Block.SIZE * 16L);
+        final ByteBuffer block = randomBuffer(Block.SIZE);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(block, cache.put(1L, i * (long) Block.SIZE, block));
+        }
+        assertTrue(cache.sizeInBytes() <= Block.SIZE * 16L);
+        assertEquals(block, cache.get(1L, 99L * Block.SIZE));
+        assertNull(cache.get(1L, 0L));
+        assertNull(cache.get(2L, 99L * Block.SIZE));
+    }
+
+    @Test
+    void secondChance() {
+        final BlockCache cache = new BlockCache(Block.SIZE * 16L);
+        final ByteBuffer block = randomBuffer(Block.SIZE);
+        cache.put(1L, 0L, block);
+        for (int i = 1; i < 100; i++) {
+            assertNotNull(cache.get(1L, 0L));
+            cache.put(1L, i * (long) Block.SIZE, block);
+        }
+        assertNotNull(cache.get(1L, 0L));
+    }
+
+    @Test
+    void tableReads(@TempDir File data) throws IOException {
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            cells.add(new Cell(ByteBuffer.wrap(String.format("key%06d", i).getBytes()),
+                    Value.of(randomBuffer(64))));
+        }
+        final LSMConfig config = new LSMConfig();
+        config.codec = Codec.DEFLATE;
+        final File file = new File(data, "table");
+        FileTable.write(cells.iterator(), file, config, 0, Long.MAX_VALUE, cells.size());
+
+        final BlockCache cache = new BlockCache(1024L * 1024);
+        final FileTable table = new FileTable(file, 1L, cache);
+        for (int round = 0; round < 2; round++) {
+            for (final Cell cell : cells) {
+                assertEquals(cell.getValue().getData(), table.get(cell.getKey()).getValue().getData());
+            }
+        }
+        assertTrue(cache.hits() >= cells.size());
+        assertTrue(cache.hitRate() > 0.5);
+    }
+}
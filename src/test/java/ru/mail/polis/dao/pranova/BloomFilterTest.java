@@ -0,0 +1,67 @@
+package ru.mail.polis.dao.pranova;
+
+import com.google.common.hash.Hashing;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks {@link BloomFilter} answers.
+ */
+class BloomFilterTest extends TestBase {
+    private static final int KEYS = 100_000;
+
+    @Test
+    void noFalseNegatives() {
+        final List<ByteBuffer> keys = new ArrayList<>(KEYS);
+        final long[] hashes = new long[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            keys.add(key);
+            hashes[i] = BloomFilter.hash(key);
+        }
+
+        final BloomFilter filter = BloomFilter.of(hashes, KEYS);
+        for (final ByteBuffer key : keys) {
+            assertTrue(filter.mightContain(key));
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < KEYS; i++) {
+            if (filter.mightContain(randomKeyBuffer())) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < KEYS / 50);
+    }
+
+    @Test
+    void hashKeepsFormat() {
+        // Filters written before are read with the same hash
+        assertEquals(Hashing.murmur3_128().hashBytes(new byte[0]).asLong(), BloomFilter.hash(ByteBuffer.allocate(0)));
+        for (int size = 1; size < 100; size++) {
+            final ByteBuffer key = randomBuffer(size);
+            final ByteBuffer shifted = ByteBuffer.allocate(size + 3);
+            shifted.position(3);
+            shifted.put(key.duplicate());
+            shifted.position(3);
+            final long expected = Hashing.murmur3_128().hashBytes(key.duplicate()).asLong();
+            assertEquals(expected, BloomFilter.hash(key));
+            assertEquals(expected, BloomFilter.hash(shifted));
+            assertEquals(3, shifted.position());
+        }
+    }
+
+    @Test
+    void empty() {
+        final BloomFilter filter = BloomFilter.of(new long[0], 0);
+        assertFalse(filter.mightContain(randomKeyBuffer()));
+    }
+}
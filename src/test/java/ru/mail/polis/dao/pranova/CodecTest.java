@@ -0,0 +1,53 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks {@link Codec} implementations.
+ */
+class CodecTest extends TestBase {
+    @Test
+    void deflate() {
+        check(Codec.DEFLATE);
+    }
+
+    @Test
+    void lz() {
+        check(Codec.LZ);
+    }
+
+    private static void check(final Codec codec) {
+        final ByteBuffer text = text();
+        final ByteBuffer compressed = codec.compress(text);
+        assertNotNull(compressed);
+        assertTrue(compressed.remaining() < text.remaining() / 2);
+        assertEquals(text, codec.decompress(compressed, text.remaining()));
+
+        assertNull(codec.compress(randomBuffer(Block.SIZE)));
+
+        final ByteBuffer zeros = ByteBuffer.allocate(Block.SIZE * 16);
+        assertEquals(zeros, codec.decompress(codec.compress(zeros), zeros.remaining()));
+
+        // Nothing is left over from the blocks before, even from the one given up on
+        assertEquals(compressed, codec.compress(text));
+        assertEquals(text, codec.decompress(compressed, text.remaining()));
+    }
+
+    private static ByteBuffer text() {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("tenant-").append(i % 7).append("/entity-").append(i).append(": {\"value\": ").append(i * 31)
+                    .append(", \"status\": \"active\"}\n");
+        }
+        return ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
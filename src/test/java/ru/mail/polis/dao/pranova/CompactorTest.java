@@ -0,0 +1,74 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that parallel merge of key ranges gives the same cells as a single merge.
+ */
+class CompactorTest extends TestBase {
+    private static final int TABLES = 3;
+    private static final int CELLS = 1_000;
+
+    @Test
+    void rangesCoverAllCells(@TempDir File data) throws IOException {
+        final AtomicLong generations = new AtomicLong();
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final List<FileTable> inputs = new ArrayList<>();
+        for (int t = 0; t < TABLES; t++) {
+            final NavigableMap<ByteBuffer, Value> cells = new TreeMap<>();
+            for (int i = 0; i < CELLS; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomValueBuffer();
+                cells.put(key, Value.of(value));
+                expected.put(key, value);
+            }
+            final long generation = generations.incrementAndGet();
+            final File file = new File(data, LSMDao.PREFIX + generation + LSMDao.SUFFIX);
+            FileTable.write(cells.entrySet().stream().map(e -> new Cell(e.getKey(), e.getValue())).iterator(),
+                    file, Codec.NONE, cells.size());
+            inputs.add(new FileTable(file, generation));
+        }
+
+        final LSMConfig config = new LSMConfig();
+        config.compactionThreads = 4;
+        config.targetFileSize = 256 * 1024;
+        final List<FileTable> outputs;
+        try (WriteBuffers buffers = new WriteBuffers();
+             Compactor compactor = new Compactor(data, config, generations, BlockCache.NONE, buffers)) {
+            outputs = compactor.merge(new CompactionTask(inputs, 1, false), new TableSet(inputs));
+        }
+
+        assertTrue(outputs.size() > 1);
+        outputs.sort(Comparator.comparing(FileTable::firstKey));
+        final Iterator<Map.Entry<ByteBuffer, ByteBuffer>> entries = expected.entrySet().iterator();
+        for (final FileTable table : outputs) {
+            assertEquals(1, table.level());
+            final Iterator<Cell> cells = table.iterator(LSMDao.nullBuffer);
+            while (cells.hasNext()) {
+                final Cell cell = cells.next();
+                final Map.Entry<ByteBuffer, ByteBuffer> entry = entries.next();
+                assertEquals(entry.getKey(), cell.getKey());
+                assertEquals(entry.getValue(), cell.getValue().getData());
+            }
+        }
+        assertFalse(entries.hasNext());
+    }
+}
@@ -0,0 +1,101 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks values with a time to live through every place a cell is kept.
+ */
+class ExpirationTest extends TestBase {
+    private static final long TTL = 200L;
+
+    @Test
+    void memTables(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final Value value = Value.of(randomValueBuffer(), TTL);
+        final List<Table> tables = new ArrayList<>();
+        tables.add(new MemTable());
+        tables.add(new ArenaMemTable());
+        try (WriteAheadLog wal = new WriteAheadLog(data, LSMDao.PREFIX, 1, false)) {
+            wal.append(key, value);
+        }
+        final MemTable replayed = new MemTable();
+        WriteAheadLog.replay(new File(data, LSMDao.PREFIX + 1 + WriteAheadLog.SUFFIX), replayed);
+        for (final Table table : tables) {
+            table.upsert(key, value);
+        }
+        tables.add(replayed);
+        for (final Table table : tables) {
+            final Value stored = table.get(key).getValue();
+            assertEquals(value.getData(), stored.getData());
+            assertEquals(value.getExpiration(), stored.getExpiration());
+        }
+    }
+
+    @Test
+    void expiredOnRead(@TempDir File data) throws IOException, InterruptedException {
+        try (LSMDao dao = new LSMDao(data, new LSMConfig())) {
+            final ByteBuffer key = randomKeyBuffer();
+            final ByteBuffer value = randomValueBuffer();
+            dao.upsert(key, value, TTL);
+            assertEquals(value, dao.get(key));
+            assertEquals(value, dao.getCell(key).getValue().getData());
+
+            Thread.sleep(TTL * 2);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            assertTrue(dao.getCell(key).getValue().isRemoved());
+        }
+    }
+
+    @Test
+    void survivesRestart(@TempDir File data) throws IOException {
+        final ByteBuffer flushed = randomKeyBuffer();
+        final ByteBuffer logged = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final long expiration;
+        try (LSMDao dao = new LSMDao(data, new LSMConfig())) {
+            dao.upsert(flushed, value, 60_000L);
+            expiration = dao.getCell(flushed).getValue().getExpiration();
+            dao.compact();
+            dao.upsert(logged, value, 60_000L);
+        }
+        try (LSMDao dao = new LSMDao(data, new LSMConfig())) {
+            assertEquals(expiration, dao.getCell(flushed).getValue().getExpiration());
+            assertTrue(dao.getCell(logged).getValue().getExpiration() >= expiration);
+            assertEquals(value, dao.get(logged));
+        }
+    }
+
+    @Test
+    void droppedByCompaction(@TempDir File data) throws IOException, InterruptedException {
+        final LSMConfig config = new LSMConfig();
+        config.tombstoneGracePeriod = 0L;
+        try (LSMDao dao = new LSMDao(data, config)) {
+            for (int i = 0; i < 100; i++) {
+                dao.upsert(randomKeyBuffer(), randomValueBuffer(), TTL);
+            }
+            dao.compact();
+            Thread.sleep(TTL * 2);
+            dao.compact();
+            assertFalse(dao.iterator(LSMDao.nullBuffer).hasNext());
+        }
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(LSMDao.SUFFIX));
+        assert tables != null;
+        for (final File table : tables) {
+            assertFalse(new FileTable(table, 1L).iterator(LSMDao.nullBuffer).hasNext());
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks {@link FileTable} format round trip.
+ */
+class FileTableTest extends TestBase {
+    private static final int CELLS = 10_000;
+
+    @Test
+    void empty(@TempDir File data) throws IOException {
+        final FileTable table = write(data, new TreeMap<>(), new LSMConfig());
+        assertNull(table.get(randomKeyBuffer()));
+        assertFalse(table.iterator(ByteBuffer.allocate(0)).hasNext());
+        assertFalse(table.decreasingIterator(randomKeyBuffer()).hasNext());
+    }
+
+    @Test
+    void roundTrip(@TempDir File data) throws IOException {
+        roundTrip(data, Codec.NONE);
+    }
+
+    @Test
+    void deflate(@TempDir File data) throws IOException {
+        roundTrip(data, Codec.DEFLATE);
+    }
+
+    @Test
+    void lz(@TempDir File data) throws IOException {
+        roundTrip(data, Codec.LZ);
+    }
+
+    @Test
+    void smallBuffers(@TempDir File data) throws IOException {
+        final LSMConfig config = new LSMConfig();
+        config.writeBufferSize = 1000;
+        config.tableSync = LSMConfig.SyncPolicy.PERIODIC;
+        config.syncInterval = 64 * 1024;
+        roundTrip(data, config);
+    }
+
+    @Test
+    void moreRowsThanExpected(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, Value> expected = cells();
+        final File file = new File(data, "table");
+        FileTable.write(expected.entrySet().stream().map(e -> new Cell(e.getKey(), e.getValue())).iterator(),
+                file, new LSMConfig(), 0, Long.MAX_VALUE, 1);
+        final FileTable table = new FileTable(file, 1L);
+        // The filter is small and full, but no key written may be missed
+        for (final Map.Entry<ByteBuffer, Value> entry : expected.entrySet()) {
+            assertValue(entry.getValue(), table.get(entry.getKey()).getValue());
+        }
+        assertEquals(expected.size(), table.rows());
+    }
+
+    @Test
+    void keysOutliveTable(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, Value> expected = cells();
+        final FileTable table = write(data, expected, new LSMConfig());
+        table.acquire();
+        final ByteBuffer first = table.firstKey();
+        final ByteBuffer last = table.lastKey();
+        final List<ByteBuffer> samples = table.samples(4);
+        // The mappings are gone, the keys of the index are not
+        table.release();
+        assertEquals(expected.firstKey(), first);
+        assertEquals(expected.lastKey(), last);
+        assertEquals(expected.firstKey(), table.firstKey());
+        assertEquals(expected.lastKey(), table.lastKey());
+        assertFalse(samples.isEmpty());
+        for (final ByteBuffer sample : samples) {
+            assertTrue(expected.containsKey(sample));
+        }
+    }
+
+    @Test
+    void hugeBoundsOfReleasedTable(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, Value> expected = new TreeMap<>();
+        expected.put(randomBuffer(64 * 1024), Value.of(randomValueBuffer()));
+        final FileTable table = write(data, expected, new LSMConfig());
+        table.acquire();
+        assertEquals(expected.firstKey(), table.lastKey());
+        table.release();
+        // Huge keys are not copied, reading them must fail instead of touching the unmapped index
+        assertThrows(IllegalStateException.class, table::lastKey);
+    }
+
+    @Test
+    void smallWindows(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, Value> expected = cells();
+        write(data, expected, new LSMConfig());
+        final FileTable table = new FileTable(new File(data, "table"), 1L, Block.SIZE * 4, BlockCache.NONE);
+        for (final Map.Entry<ByteBuffer, Value> entry : expected.entrySet()) {
+            assertValue(entry.getValue(), table.get(entry.getKey()).getValue());
+        }
+        assertCells(expected.entrySet().iterator(), table.iterator(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    void sharedPrefixes(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, Value> expected = new TreeMap<>();
+        long keys = 0;
+        for (int i = 0; i < CELLS; i++) {
+            final ByteBuffer key = ByteBuffer.wrap(String.format("user:profile:%012d", i * 7).getBytes(UTF_8));
+            keys += key.remaining();
+            expected.put(key, i % 10 == 0 ? Value.tombstone() : Value.of(randomBuffer(8)));
+        }
+        final FileTable table = write(data, expected, new LSMConfig());
+        // Values and timestamps are stored as is, while keys mostly shrink to a few bytes
+        assertTrue(table.sizeInBytes() < keys / 2 + CELLS * (Long.BYTES + Integer.BYTES + 8));
+
+        for (final Map.Entry<ByteBuffer, Value> entry : expected.entrySet()) {
+            assertValue(entry.getValue(), table.get(entry.getKey()).getValue());
+        }
+        final ByteBuffer absent = ByteBuffer.wrap(String.format("user:profile:%012d", 7 * 500 + 3).getBytes(UTF_8));
+        assertNull(table.get(absent));
+        assertCells(expected.tailMap(absent).entrySet().iterator(), table.iterator(absent));
+        assertCells(expected.headMap(absent, true).descendingMap().entrySet().iterator(),
+                table.decreasingIterator(absent));
+    }
+
+    private static void roundTrip(final File data, final Codec codec) throws IOException {
+        final LSMConfig config = new LSMConfig();
+        config.codec = codec;
+        roundTrip(data, config);
+    }
+
+    private static void roundTrip(final File data, final LSMConfig config) throws IOException {
+        final NavigableMap<ByteBuffer, Value> expected = cells();
+        final FileTable table = write(data, expected, config);
+
+        for (final Map.Entry<ByteBuffer, Value> entry : expected.entrySet()) {
+            assertValue(entry.getValue(), table.get(entry.getKey()).getValue());
+        }
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            if (!expected.containsKey(key)) {
+                assertNull(table.get(key));
+            }
+        }
+
+        assertCells(expected.entrySet().iterator(), table.iterator(ByteBuffer.allocate(0)));
+        final ByteBuffer middle = randomKeyBuffer();
+        assertCells(expected.tailMap(middle).entrySet().iterator(), table.iterator(middle));
+        assertCells(expected.headMap(middle, true).descendingMap().entrySet().iterator(),
+                table.decreasingIterator(middle));
+    }
+
+    private static NavigableMap<ByteBuffer, Value> cells() {
+        final NavigableMap<ByteBuffer, Value> cells = new TreeMap<>();
+        for (int i = 0; i < CELLS; i++) {
+            final int valueSize = ThreadLocalRandom.current().nextInt(i % 100 == 0 ? Block.SIZE * 3 : 64) + 1;
+            final ByteBuffer value = i % 2 == 0 ? randomBuffer(valueSize) : ByteBuffer.allocate(valueSize);
+            cells.put(randomKeyBuffer(), i % 10 == 0 ? Value.tombstone() : Value.of(value));
+        }
+        return cells;
+    }
+
+    private static FileTable write(final File data,
+                                   final NavigableMap<ByteBuffer, Value> cells,
+                                   final LSMConfig config) throws IOException {
+        final File file = new File(data, "table");
+        FileTable.write(cells.entrySet().stream().map(e -> new Cell(e.getKey(), e.getValue())).iterator(),
+                file, config, 0, Long.MAX_VALUE, cells.size());
+        return new FileTable(file, 1L);
+    }
+
+    private static void assertCells(final Iterator<Map.Entry<ByteBuffer, Value>> expected,
+                                    final Iterator<Cell> actual) {
+        while (expected.hasNext()) {
+            assertTrue(actual.hasNext());
+            final Map.Entry<ByteBuffer, Value> entry = expected.next();
+            final Cell cell = actual.next();
+            assertEquals(entry.getKey(), cell.getKey());
+            assertValue(entry.getValue(), cell.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    private static void assertValue(final Value expected, final Value actual) {
+        assertEquals(expected.getTimeStamp(), actual.getTimeStamp());
+        assertEquals(expected.isRemoved(), actual.isRemoved());
+        if (!expected.isRemoved()) {
+            assertEquals(expected.getData(), actual.getData());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the layout left by background leveled compaction.
+ */
+class LeveledCompactionTest extends TestBase {
+    private static final int KEYS = 2_000;
+    private static final int WRITES = 20_000;
+
+    @Test
+    void levelsDoNotOverlap(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            keys.add(randomKeyBuffer());
+        }
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < WRITES; i++) {
+                final ByteBuffer key = keys.get(i % KEYS);
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+
+        final TableSet tables = open(data);
+        assertTrue(tables.depth() > 1);
+        for (int level = 1; level < tables.depth(); level++) {
+            final List<FileTable> sorted = tables.level(level);
+            for (int i = 1; i < sorted.size(); i++) {
+                assertTrue(sorted.get(i - 1).lastKey().compareTo(sorted.get(i).firstKey()) < 0);
+            }
+        }
+
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    private static LSMConfig config() {
+        final LSMConfig config = new LSMConfig();
+        config.flushThreshold = 16 * 1024;
+        config.levelZeroFiles = 2;
+        config.levelOneSize = 64 * 1024;
+        config.targetFileSize = 32 * 1024;
+        return config;
+    }
+
+    private static TableSet open(final File data) throws IOException {
+        final List<FileTable> tables = new ArrayList<>();
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(".dat"));
+        assert files != null;
+        for (final File file : files) {
+            final String name = file.getName();
+            tables.add(new FileTable(file, Long.parseLong(name.substring(3, name.length() - 4))));
+        }
+        return new TableSet(tables);
+    }
+}
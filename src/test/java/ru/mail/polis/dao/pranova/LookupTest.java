@@ -0,0 +1,114 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that a point lookup stops at the newest version of a key, wherever the version is kept.
+ */
+class LookupTest extends TestBase {
+    @Test
+    void shadowedAcrossMemoryAndFiles(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer oldest = randomValueBuffer();
+        final ByteBuffer older = randomValueBuffer();
+        final ByteBuffer newest = randomValueBuffer();
+        // Every close flushes a table of its own, none is compacted
+        try (LSMDao dao = new LSMDao(data, config())) {
+            dao.upsert(key, oldest);
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            dao.upsert(key, older);
+        }
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(LSMDao.SUFFIX));
+        assertTrue(tables != null && tables.length >= 2);
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertEquals(older, dao.get(key));
+            dao.upsert(key, newest);
+            assertEquals(newest, dao.get(key));
+            assertEquals(newest, dao.getCell(key).getValue().getData());
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertEquals(newest, dao.get(key));
+        }
+    }
+
+    @Test
+    void tombstoneOverValue(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        try (LSMDao dao = new LSMDao(data, config())) {
+            dao.upsert(key, randomValueBuffer());
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            dao.remove(key);
+            assertTrue(dao.getCell(key).getValue().isRemoved());
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+        // The tombstone is on disk now, in a table newer than the value
+        try (LSMDao dao = new LSMDao(data, config())) {
+            assertTrue(dao.getCell(key).getValue().isRemoved());
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+    }
+
+    @Test
+    void miss(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            dao.upsert(randomKeyBuffer(), randomValueBuffer());
+        }
+        try (LSMDao dao = new LSMDao(data, config())) {
+            dao.upsert(randomKeyBuffer(), randomValueBuffer());
+            final ByteBuffer absent = randomKeyBuffer();
+            assertSame(Cell.ABSENT, dao.findCell(absent));
+            assertThrows(NoSuchElementException.class, () -> dao.getCell(absent));
+            assertThrows(NoSuchElementException.class, () -> dao.get(absent));
+        }
+    }
+
+    @Test
+    void flushPending(@TempDir File data) throws IOException {
+        final LSMConfig config = config();
+        config.flushThreads = 1;
+        config.flushQueueSize = 4;
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer pending = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final ByteBuffer newer = randomValueBuffer();
+        // Nobody takes the tables off the flush queue, so a rotated table stays pending
+        try (WriteAheadLog wal = new WriteAheadLog(data, LSMDao.PREFIX, 1, false);
+             MemoryTablePool pool = new MemoryTablePool(new AtomicLong(1), config, wal, new SnapshotSequences())) {
+            pool.upsert(key, value);
+            pool.upsert(pending, value);
+            pool.flush();
+            assertEquals(1, pool.oldestPending());
+
+            assertEquals(value, pool.get(key).getValue().getData());
+            assertEquals(value, pool.get(pending).getValue().getData());
+            assertNull(pool.get(randomKeyBuffer()));
+
+            pool.upsert(key, newer);
+            assertEquals(newer, pool.get(key).getValue().getData());
+            pool.remove(pending);
+            assertTrue(pool.get(pending).getValue().isRemoved());
+        }
+    }
+
+    private static LSMConfig config() {
+        final LSMConfig config = new LSMConfig();
+        config.levelZeroFiles = 100;
+        return config;
+    }
+}
@@ -0,0 +1,211 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the storage is opened from its {@link Manifest} and survives interrupted edits.
+ */
+class ManifestTest extends TestBase {
+    private static final int KEYS = 1_000;
+
+    @Test
+    void reopen(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(data);
+        assertTrue(new File(data, Manifest.NAME).exists());
+        check(data, expected);
+        check(data, expected);
+    }
+
+    @Test
+    void baselineTables(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> older = new TreeMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            older.put(randomKeyBuffer(), randomValueBuffer());
+        }
+        final NavigableMap<ByteBuffer, ByteBuffer> newer = new TreeMap<>();
+        for (final ByteBuffer key : older.keySet()) {
+            if (key.get(0) % 2 == 0) {
+                newer.put(key, key.get(1) % 2 == 0 ? null : randomValueBuffer());
+            }
+        }
+        writeBaseline(new File(data, LSMDao.PREFIX + 1 + LSMDao.SUFFIX), older, 1);
+        writeBaseline(new File(data, LSMDao.PREFIX + 2 + LSMDao.SUFFIX), newer, 2);
+        writeBaseline(new File(data, LSMDao.PREFIX + 3 + LSMDao.SUFFIX), new TreeMap<>(), 3);
+
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>(older);
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : newer.entrySet()) {
+            if (entry.getValue() == null) {
+                expected.remove(entry.getKey());
+            } else {
+                expected.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (int i = 0; i < 2; i++) {
+            try (LSMDao dao = new LSMDao(data, config())) {
+                final Iterator<Record> records = dao.iterator(LSMDao.nullBuffer);
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                    final Record record = records.next();
+                    assertEquals(entry.getKey(), record.getKey());
+                    assertEquals(entry.getValue(), record.getValue());
+                }
+                assertFalse(records.hasNext());
+            }
+            for (final File table : tables(data)) {
+                assertTrue(FileTable.hasFooter(table));
+            }
+        }
+    }
+
+    @Test
+    void startupReadsNoTable(@TempDir File data) throws IOException {
+        fill(data);
+        // Tables that can't be opened don't matter until they are read
+        for (final File table : tables(data)) {
+            try (FileChannel fc = FileChannel.open(table.toPath(), StandardOpenOption.WRITE)) {
+                fc.write(ByteBuffer.allocate(Long.BYTES), fc.size() - Long.BYTES);
+            }
+        }
+        new LSMDao(data, config()).close();
+    }
+
+    @Test
+    void tornEdit(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(data);
+        Files.write(new File(data, Manifest.NAME).toPath(), randomBuffer(100).array(), StandardOpenOption.APPEND);
+        check(data, expected);
+    }
+
+    @Test
+    void failedRewrite(@TempDir File data) throws IOException {
+        fill(data);
+        final List<FileTable> tables = new ArrayList<>();
+        for (final File file : tables(data)) {
+            final String name = file.getName();
+            tables.add(new FileTable(file, Long.parseLong(
+                    name.substring(LSMDao.PREFIX.length(), name.length() - LSMDao.SUFFIX.length()))));
+        }
+        final FileTable table = tables.get(0);
+        final File blocker = new File(data, Manifest.TEMP);
+        try (Manifest manifest = new Manifest(data)) {
+            manifest.start(tables);
+            // The new log can't be created where a directory is in its way
+            Files.createDirectory(blocker.toPath());
+            for (int i = 0; i < Manifest.REWRITE; i++) {
+                manifest.apply(List.of(table), List.of(table));
+            }
+            // The old log takes the edits after the failed rewrite
+            manifest.apply(List.of(table), List.of());
+        }
+        Files.delete(blocker.toPath());
+        try (Manifest manifest = new Manifest(data)) {
+            assertEquals(tables.size() - 1, manifest.entries().size());
+        }
+    }
+
+    @Test
+    void unpublishedTable(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(data);
+        final File orphan = new File(data, LSMDao.PREFIX + Long.MAX_VALUE / 2 + LSMDao.SUFFIX);
+        Files.copy(tables(data)[0].toPath(), orphan.toPath());
+        check(data, expected);
+        assertFalse(orphan.exists());
+    }
+
+    @Test
+    void withoutManifest(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(data);
+        Files.delete(new File(data, Manifest.NAME).toPath());
+        check(data, expected);
+        assertTrue(new File(data, Manifest.NAME).exists());
+        check(data, expected);
+    }
+
+    private static LSMConfig config() {
+        final LSMConfig config = new LSMConfig();
+        config.flushThreshold = 16 * 1024;
+        config.levelZeroFiles = 100;
+        return config;
+    }
+
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(final File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                expected.put(key, value);
+                if (i == KEYS / 2) {
+                    dao.compact();
+                }
+            }
+        }
+        return expected;
+    }
+
+    private static void check(final File data, final Map<ByteBuffer, ByteBuffer> expected) throws IOException {
+        try (LSMDao dao = new LSMDao(data, config())) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Table as it was written before tables got blocks and a footer, a null value is a tombstone.
+     */
+    private static void writeBaseline(final File file,
+                                      final NavigableMap<ByteBuffer, ByteBuffer> cells,
+                                      final long timestamp) throws IOException {
+        int size = Long.BYTES;
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : cells.entrySet()) {
+            size += Long.BYTES + Integer.BYTES + entry.getKey().remaining() + Long.BYTES
+                    + (entry.getValue() == null ? 0 : Integer.BYTES + entry.getValue().remaining());
+        }
+        final ByteBuffer table = ByteBuffer.allocate(size);
+        final List<Long> offsets = new ArrayList<>();
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : cells.entrySet()) {
+            offsets.add((long) table.position());
+            table.putInt(entry.getKey().remaining());
+            table.put(entry.getKey().duplicate());
+            if (entry.getValue() == null) {
+                table.putLong(-timestamp);
+            } else {
+                table.putLong(timestamp);
+                table.putInt(entry.getValue().remaining());
+                table.put(entry.getValue().duplicate());
+            }
+        }
+        for (final long offset : offsets) {
+            table.putLong(offset);
+        }
+        table.putLong(offsets.size());
+        Files.write(file.toPath(), table.array());
+    }
+
+    private static File[] tables(final File data) {
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(LSMDao.SUFFIX));
+        assert files != null && files.length > 0;
+        return files;
+    }
+}
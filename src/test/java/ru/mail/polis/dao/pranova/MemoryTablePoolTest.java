@@ -0,0 +1,133 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that no write is lost while concurrent writers rotate memory tables.
+ */
+class MemoryTablePoolTest extends TestBase {
+    private static final int THREADS = 8;
+    private static final int WRITES = 2_000;
+
+    @Test
+    void concurrentRotation(@TempDir File data) throws Exception {
+        writeConcurrently(data, 1, false);
+    }
+
+    @Test
+    void stripedRotation(@TempDir File data) throws Exception {
+        writeConcurrently(data, 4, false);
+    }
+
+    @Test
+    void offHeapRotation(@TempDir File data) throws Exception {
+        // Flushed tables are freed while the readers look them up
+        writeConcurrently(data, 4, true);
+    }
+
+    @Test
+    void closeWakesWaitingWriters(@TempDir File data) {
+        final LSMConfig config = new LSMConfig();
+        config.flushThreshold = 4 * 1024;
+        assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+            final LSMDao dao = new LSMDao(data, config);
+            final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            final List<Future<Integer>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    // Writers keep rotating tiny tables and snapshots wait for them, until close stops them all
+                    int writes = 0;
+                    try {
+                        while (true) {
+                            dao.upsert(randomKeyBuffer(), randomValueBuffer());
+                            if (++writes % 100 == 0) {
+                                dao.snapshot().close();
+                            }
+                        }
+                    } catch (IllegalStateException e) {
+                        return writes;
+                    }
+                }));
+            }
+            Thread.sleep(500);
+            dao.close();
+            for (final Future<Integer> future : futures) {
+                assertTrue(future.get() > 0);
+            }
+            executor.shutdown();
+        });
+    }
+
+    @Test
+    void failedFlush(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final File blocker = new File(data, LSMDao.PREFIX + 1 + LSMDao.TEMP);
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            final LSMDao dao = new LSMDao(data, new LSMConfig());
+            // The first table can't be written where a directory is in its way
+            Files.createDirectory(blocker.toPath());
+            dao.upsert(key, value);
+            assertThrows(IOException.class, dao::compact);
+            assertThrows(IOException.class, () -> dao.upsert(key, value));
+            assertThrows(IOException.class, dao::close);
+        });
+        Files.delete(blocker.toPath());
+        try (LSMDao dao = new LSMDao(data, new LSMConfig())) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    private static void writeConcurrently(final File data, final int stripes, final boolean offHeap)
+            throws Exception {
+        final LSMConfig config = new LSMConfig();
+        config.flushThreshold = 32 * 1024;
+        config.memTableStripes = stripes;
+        config.offHeap = offHeap;
+        final List<List<ByteBuffer>> written = new ArrayList<>();
+        try (LSMDao dao = new LSMDao(data, config)) {
+            final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            final List<Future<List<ByteBuffer>>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(() -> write(dao)));
+            }
+            for (final Future<List<ByteBuffer>> future : futures) {
+                written.add(future.get());
+            }
+            executor.shutdown();
+            for (final List<ByteBuffer> keys : written) {
+                for (final ByteBuffer key : keys) {
+                    assertEquals(key, dao.get(key));
+                }
+            }
+        }
+    }
+
+    private static List<ByteBuffer> write(final LSMDao dao) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>(WRITES);
+        for (int i = 0; i < WRITES; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            dao.upsert(key, key);
+            keys.add(key);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,108 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks {@link MissCache} bounds and its use by {@link LSMDao}.
+ */
+class MissCacheTest extends TestBase {
+    @Test
+    void bounded() {
+        final MissCache cache = new MissCache(100);
+        final ByteBuffer first = randomKeyBuffer();
+        cache.add(first, cache.stamp(first));
+        for (int i = 0; i < 1000; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            cache.add(key, cache.stamp(key));
+            assertTrue(cache.contains(key));
+        }
+        assertTrue(cache.size() <= 100);
+        assertFalse(cache.contains(first));
+    }
+
+    @Test
+    void staleLookup() {
+        final MissCache cache = new MissCache(100);
+        final ByteBuffer key = randomKeyBuffer();
+        final long stamp = cache.stamp(key);
+        cache.invalidate(key);
+        cache.add(key, stamp);
+        assertFalse(cache.contains(key));
+    }
+
+    @Test
+    void missedAgain() {
+        final MissCache cache = new MissCache(3);
+        final ByteBuffer key = randomKeyBuffer();
+        cache.add(key, cache.stamp(key));
+        cache.invalidate(key);
+        assertEquals(0, cache.size());
+
+        cache.add(key, cache.stamp(key));
+        final ByteBuffer first = randomKeyBuffer();
+        cache.add(first, cache.stamp(first));
+        final ByteBuffer second = randomKeyBuffer();
+        cache.add(second, cache.stamp(second));
+        assertEquals(3, cache.size());
+        assertTrue(cache.contains(key));
+
+        // The key is the oldest one now
+        final ByteBuffer third = randomKeyBuffer();
+        cache.add(third, cache.stamp(third));
+        assertEquals(3, cache.size());
+        assertFalse(cache.contains(key));
+        assertTrue(cache.contains(first));
+        assertTrue(cache.contains(second));
+        assertTrue(cache.contains(third));
+    }
+
+    @Test
+    void churnStaysBounded() {
+        final MissCache cache = new MissCache(10);
+        for (int i = 0; i < 1000; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            cache.add(key, cache.stamp(key));
+            cache.invalidate(key);
+        }
+        assertEquals(0, cache.size());
+        for (int i = 0; i < 10; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            cache.add(key, cache.stamp(key));
+            assertTrue(cache.contains(key));
+        }
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    void clearedByWrites(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, new LSMConfig())) {
+            final ByteBuffer key = randomKeyBuffer();
+            assertSame(Cell.ABSENT, dao.findCell(key));
+            assertSame(Cell.ABSENT, dao.findCell(key));
+            assertEquals(1L, dao.missCache().hits());
+            assertThrows(NoSuchElementException.class, () -> dao.getCell(key));
+
+            final ByteBuffer value = randomValueBuffer();
+            dao.upsert(key, value);
+            assertEquals(value, dao.findCell(key).getValue().getData());
+
+            final ByteBuffer removed = randomKeyBuffer();
+            dao.findCell(removed);
+            dao.remove(removed);
+            assertTrue(dao.findCell(removed).getValue().isRemoved());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks {@link RowCache} admission and its invalidation by {@link LSMDao}.
+ */
+class RowCacheTest extends TestBase {
+    @Test
+    void scanResistant() {
+        final RowCache cache = new RowCache(16 * 1024L);
+        final ByteBuffer hot = randomKeyBuffer();
+        for (int i = 0; i < 10; i++) {
+            assertNull(cache.get(hot));
+        }
+        cache.put(new Cell(hot, Value.of(randomBuffer(128))), cache.stamp(hot));
+        for (int i = 0; i < 1000; i++) {
+            final ByteBuffer cold = randomKeyBuffer();
+            assertNull(cache.get(cold));
+            cache.put(new Cell(cold, Value.of(randomBuffer(128))), cache.stamp(cold));
+        }
+        assertTrue(cache.sizeInBytes() <= 16 * 1024L);
+        assertNotNull(cache.get(hot));
+    }
+
+    @Test
+    void staleLookup() {
+        final RowCache cache = new RowCache(16 * 1024L);
+        final ByteBuffer key = randomKeyBuffer();
+        final long stamp = cache.stamp(key);
+        cache.invalidate(key);
+        cache.put(new Cell(key, Value.of(randomValueBuffer())), stamp);
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    void invalidatedByWrites(@TempDir File data) throws IOException {
+        final LSMConfig config = new LSMConfig();
+        config.rowCacheSize = 1024L * 1024;
+        try (LSMDao dao = new LSMDao(data, config)) {
+            final ByteBuffer key = randomKeyBuffer();
+            final ByteBuffer value = randomValueBuffer();
+            dao.upsert(key, value);
+            assertEquals(value, dao.getCell(key).getValue().getData());
+            assertEquals(value, dao.getCell(key).getValue().getData());
+            assertTrue(dao.rowCache().hits() > 0);
+
+            final ByteBuffer updated = randomValueBuffer();
+            dao.upsert(key, updated);
+            assertEquals(updated, dao.getCell(key).getValue().getData());
+
+            dao.remove(key);
+            assertTrue(dao.getCell(key).getValue().isRemoved());
+        }
+    }
+}
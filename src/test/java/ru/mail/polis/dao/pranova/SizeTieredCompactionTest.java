@@ -0,0 +1,92 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the layout left by background size-tiered compaction.
+ */
+class SizeTieredCompactionTest extends TestBase {
+    private static final int KEYS = 2_000;
+    private static final int WRITES = 20_000;
+    private static final int TIER_SIZE = 3;
+
+    @Test
+    void tiersStayBelowLimit(@TempDir File data) throws IOException {
+        final TableSet tables = fill(data, config());
+        for (int tier = 1; tier < tables.depth(); tier++) {
+            assertTrue(SizeTieredCompaction.runs(tables.level(tier)) < TIER_SIZE);
+        }
+    }
+
+    @Test
+    void mergesSplitAtTargetSize(@TempDir File data) throws IOException {
+        final LSMConfig config = config();
+        config.targetFileSize = 32 * 1024;
+        final TableSet tables = fill(data, config);
+        boolean split = false;
+        for (int tier = 1; tier < tables.depth(); tier++) {
+            final List<FileTable> level = tables.level(tier);
+            assertTrue(SizeTieredCompaction.runs(level) < TIER_SIZE);
+            split |= level.size() > SizeTieredCompaction.runs(level);
+        }
+        assertTrue(split);
+    }
+
+    private TableSet fill(final File data, final LSMConfig config) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            keys.add(randomKeyBuffer());
+        }
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (LSMDao dao = new LSMDao(data, config)) {
+            for (int i = 0; i < WRITES; i++) {
+                final ByteBuffer key = keys.get(i % KEYS);
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+
+        try (LSMDao dao = new LSMDao(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+
+        final TableSet tables = open(data);
+        assertTrue(tables.depth() > 1);
+        return tables;
+    }
+
+    private static LSMConfig config() {
+        final LSMConfig config = new LSMConfig();
+        config.flushThreshold = 16 * 1024;
+        config.compaction = LSMConfig.Compaction.TIERED;
+        config.tierSize = TIER_SIZE;
+        return config;
+    }
+
+    private static TableSet open(final File data) throws IOException {
+        final List<FileTable> tables = new ArrayList<>();
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(".dat"));
+        assert files != null;
+        for (final File file : files) {
+            final String name = file.getName();
+            tables.add(new FileTable(file, Long.parseLong(name.substring(3, name.length() - 4))));
+        }
+        return new TableSet(tables);
+    }
+}
@@ -0,0 +1,244 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that a {@link Snapshot} doesn't see writes, flushes and compactions done after it.
+ */
+class SnapshotTest extends TestBase {
+    private static final int KEYS = 1_000;
+
+    @Test
+    void consistentView(@TempDir File data) throws IOException {
+        final LSMConfig config = new LSMConfig();
+        config.flushThreshold = 16 * 1024;
+        config.levelZeroFiles = 2;
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (LSMDao dao = new LSMDao(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+
+            try (Snapshot snapshot = dao.snapshot()) {
+                for (final ByteBuffer key : expected.keySet()) {
+                    if (key.get(0) % 2 == 0) {
+                        dao.remove(key);
+                    } else {
+                        dao.upsert(key, randomValueBuffer());
+                    }
+                }
+                final ByteBuffer added = randomKeyBuffer();
+                dao.upsert(added, randomValueBuffer());
+                dao.compact();
+
+                assertSame(Cell.ABSENT, snapshot.findCell(added));
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                    assertEquals(entry.getValue(), snapshot.findCell(entry.getKey()).getValue().getData());
+                }
+                assertRecords(expected, snapshot.iterator(LSMDao.nullBuffer));
+            }
+
+            try (Snapshot snapshot = dao.snapshot()) {
+                final ByteBuffer key = expected.firstKey();
+                assertTrue(snapshot.findCell(key).getValue().getTimeStamp() <= snapshot.sequence());
+                assertEquals(dao.getCell(key).getValue().getTimeStamp(),
+                        snapshot.findCell(key).getValue().getTimeStamp());
+            }
+        }
+    }
+
+    @Test
+    void overwrittenOnHeap(@TempDir File data) throws IOException {
+        overwrittenInMemory(data, false);
+    }
+
+    @Test
+    void overwrittenOffHeap(@TempDir File data) throws IOException {
+        overwrittenInMemory(data, true);
+    }
+
+    @Test
+    void scanKeepsTables(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, new LSMConfig())) {
+            // Far below the flush threshold, so only a snapshot could make a table
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao, KEYS / 10);
+            final int tables = tables(data);
+            for (int i = 0; i < 50; i++) {
+                expected.putAll(fill(dao, 1));
+                try (Snapshot snapshot = dao.snapshot()) {
+                    assertRecords(expected, snapshot.iterator(LSMDao.nullBuffer));
+                }
+            }
+            assertEquals(tables, tables(data));
+        }
+    }
+
+    @Test
+    void flushDuringSnapshot(@TempDir File data) throws Exception {
+        final LSMConfig config = new LSMConfig();
+        config.flushThreshold = 4 * 1024;
+        final int keys = 100;
+        final int rounds = 1_000;
+        try (LSMDao dao = new LSMDao(data, config)) {
+            // Every round overwrites all the keys in order, so a snapshot sees a round up to some key
+            // and the round before after it, a snapshot missing a table flushed meanwhile sees older ones
+            writeRound(dao, keys, 0);
+            final ExecutorService executor = Executors.newSingleThreadExecutor();
+            final Future<?> writer = executor.submit(() -> {
+                for (int round = 1; round < rounds; round++) {
+                    writeRound(dao, keys, round);
+                }
+                return null;
+            });
+            while (!writer.isDone()) {
+                try (Snapshot snapshot = dao.snapshot()) {
+                    final Iterator<Record> records = snapshot.iterator(LSMDao.nullBuffer);
+                    final int first = records.next().getValue().getInt();
+                    int previous = first;
+                    for (int i = 1; i < keys; i++) {
+                        final int round = records.next().getValue().getInt();
+                        assertTrue(round == previous || round == first - 1 && previous == first);
+                        previous = round;
+                    }
+                    assertFalse(records.hasNext());
+                }
+            }
+            writer.get();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void overwritesNotKept() {
+        final MemTable table = new MemTable(new SnapshotSequences());
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        for (int i = 0; i < KEYS; i++) {
+            table.upsert(key, Value.of(value));
+        }
+        assertEquals(key.remaining() + value.remaining(), table.sizeInBytes());
+    }
+
+    @Test
+    void versionsKeptForSnapshotsOnHeap() throws IOException {
+        final SnapshotSequences snapshots = new SnapshotSequences();
+        versionsKeptForSnapshots(new MemTable(snapshots), snapshots);
+    }
+
+    @Test
+    void versionsKeptForSnapshotsOffHeap() throws IOException {
+        final SnapshotSequences snapshots = new SnapshotSequences();
+        versionsKeptForSnapshots(new ArenaMemTable(snapshots), snapshots);
+    }
+
+    @Test
+    void range(@TempDir File data) throws IOException {
+        try (LSMDao dao = new LSMDao(data, new LSMConfig())) {
+            final ByteBuffer from = ByteBuffer.wrap(new byte[]{1});
+            final ByteBuffer to = ByteBuffer.wrap(new byte[]{3});
+            for (byte i = 0; i < 5; i++) {
+                dao.upsert(ByteBuffer.wrap(new byte[]{i}), randomValueBuffer());
+            }
+            try (Snapshot snapshot = dao.snapshot()) {
+                dao.remove(from);
+                final Iterator<Record> records = snapshot.range(from, to);
+                assertEquals(from, records.next().getKey());
+                assertEquals(ByteBuffer.wrap(new byte[]{2}), records.next().getKey());
+                assertFalse(records.hasNext());
+            }
+        }
+    }
+
+    private static void overwrittenInMemory(final File data, final boolean offHeap) throws IOException {
+        final LSMConfig config = new LSMConfig();
+        config.offHeap = offHeap;
+        config.memTableStripes = 4;
+        try (LSMDao dao = new LSMDao(data, config)) {
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao, KEYS / 10);
+            try (Snapshot snapshot = dao.snapshot()) {
+                for (final ByteBuffer key : expected.keySet()) {
+                    dao.upsert(key, randomValueBuffer());
+                }
+                dao.remove(expected.firstKey());
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                    assertEquals(entry.getValue(), snapshot.findCell(entry.getKey()).getValue().getData());
+                }
+                assertRecords(expected, snapshot.iterator(LSMDao.nullBuffer));
+            }
+        }
+    }
+
+    private static void versionsKeptForSnapshots(final Table table,
+                                                 final SnapshotSequences snapshots) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final Value first = Value.of(randomValueBuffer());
+        table.upsert(key, first);
+        final long sequence = snapshots.open();
+        table.upsert(key, Value.of(randomValueBuffer()));
+        final Value last = Value.of(randomValueBuffer());
+        table.upsert(key, last);
+        // The version between the two overwrites is read by nobody
+        assertEquals(first.getData(), table.get(key, sequence).getValue().getData());
+        assertEquals(first.getData(), table.get(key, last.getTimeStamp() - 1).getValue().getData());
+        snapshots.close(sequence);
+        table.upsert(key, Value.of(last.getData()));
+        assertNull(table.get(key, sequence));
+        assertEquals(last.getData(), table.get(key).getValue().getData());
+    }
+
+    private static void writeRound(final LSMDao dao, final int keys, final int round) throws IOException {
+        for (int i = 0; i < keys; i++) {
+            final ByteBuffer key = ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+            dao.upsert(key, ByteBuffer.allocate(Integer.BYTES).putInt(0, round));
+        }
+    }
+
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(final LSMDao dao, final int count) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> records = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            final ByteBuffer value = randomValueBuffer();
+            dao.upsert(key, value);
+            records.put(key, value);
+        }
+        return records;
+    }
+
+    private static void assertRecords(final Map<ByteBuffer, ByteBuffer> expected, final Iterator<Record> records) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static int tables(final File data) {
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(LSMDao.SUFFIX));
+        assert files != null;
+        return files.length;
+    }
+}
@@ -0,0 +1,135 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that tables replaced by compaction are deleted and unmapped only after their last reader.
+ */
+class TableLifecycleTest extends TestBase {
+    private static final int KEYS = 1_000;
+
+    @Test
+    void iteratorOutlivesCompaction(@TempDir File data) throws IOException {
+        final LSMConfig config = new LSMConfig();
+        config.flushThreshold = 16 * 1024;
+        config.levelZeroFiles = 100;
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (LSMDao dao = new LSMDao(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            dao.compact();
+            for (final ByteBuffer key : expected.keySet()) {
+                dao.upsert(key, expected.get(key));
+            }
+
+            final Iterator<Record> records = dao.iterator(LSMDao.nullBuffer);
+            final Snapshot snapshot = dao.snapshot();
+            dao.compact();
+            assertTrue(retired(data) > 0);
+
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+            assertTrue(retired(data) > 0);
+
+            snapshot.close();
+            assertEquals(0, retired(data));
+        }
+    }
+
+    @Test
+    void closedIteratorReleasesTables(@TempDir File data) throws IOException {
+        final LSMConfig config = new LSMConfig();
+        config.flushThreshold = 16 * 1024;
+        config.levelZeroFiles = 100;
+        try (LSMDao dao = new LSMDao(data, config)) {
+            final List<ByteBuffer> keys = new ArrayList<>(KEYS);
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                dao.upsert(key, randomValueBuffer());
+                keys.add(key);
+            }
+            dao.compact();
+            for (final ByteBuffer key : keys) {
+                dao.upsert(key, randomValueBuffer());
+            }
+
+            // The iterator is abandoned half read, but it is still reachable
+            final CloseableIterator<Record> records = dao.iterator(LSMDao.nullBuffer);
+            records.next();
+            dao.compact();
+            assertTrue(retired(data) > 0);
+
+            records.close();
+            assertEquals(0, retired(data));
+            records.close();
+        }
+    }
+
+    @Test
+    void cellsOutliveUnmapping(@TempDir File data) throws IOException {
+        assertTrue(MappedRegion.canUnmap());
+        final LSMConfig config = new LSMConfig();
+        config.flushThreshold = 16 * 1024;
+        config.levelZeroFiles = 100;
+        config.blockCacheSize = 0;
+        try (LSMDao dao = new LSMDao(data, config)) {
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            dao.compact();
+
+            // Blocks read past the cache are the only ones that could point into a mapping
+            final List<Cell> cells = new ArrayList<>();
+            for (final ByteBuffer key : expected.keySet()) {
+                cells.add(dao.getCell(key));
+            }
+            for (final ByteBuffer key : expected.keySet()) {
+                dao.upsert(key, expected.get(key));
+            }
+            dao.compact();
+            assertEquals(0, retired(data));
+
+            final Iterator<Cell> read = cells.iterator();
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                final Cell cell = read.next();
+                assertEquals(entry.getKey(), cell.getKey());
+                assertEquals(entry.getValue(), cell.getValue().getData());
+            }
+        }
+    }
+
+    private static int retired(final File data) {
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(LSMDao.RETIRED));
+        assert files != null;
+        return files.length;
+    }
+}
@@ -0,0 +1,55 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the hybrid logical clock of {@link Time}.
+ */
+class TimeTest extends TestBase {
+    private static final int THREADS = 8;
+    private static final int TICKS = 100_000;
+
+    @Test
+    void uniqueAndMonotonic() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final List<Future<long[]>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(executor.submit(() -> {
+                final long[] ticks = new long[TICKS];
+                for (int i = 0; i < TICKS; i++) {
+                    ticks[i] = Time.currentTime();
+                }
+                return ticks;
+            }));
+        }
+        final Set<Long> all = new HashSet<>();
+        for (final Future<long[]> future : futures) {
+            final long[] ticks = future.get();
+            for (int i = 0; i < TICKS; i++) {
+                assertTrue(i == 0 || ticks[i] > ticks[i - 1]);
+                all.add(ticks[i]);
+            }
+        }
+        executor.shutdown();
+        assertEquals(THREADS * TICKS, all.size());
+    }
+
+    @Test
+    void observeRemote() {
+        final long remote = Time.currentTime() + 1_000_000_000L;
+        Time.observe(remote);
+        assertTrue(Time.currentTime() > remote);
+    }
+}
@@ -0,0 +1,96 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks which tombstones a compaction drops.
+ */
+class TombstonePurgeTest extends TestBase {
+    private static final int CELLS = 100;
+
+    @Test
+    void oldTombstonesDropped(@TempDir File data) throws IOException {
+        final AtomicLong generations = new AtomicLong();
+        final NavigableMap<ByteBuffer, Value> cells = new TreeMap<>();
+        for (int i = 0; i < CELLS; i++) {
+            cells.put(randomKeyBuffer(), new Value(1L, null));
+        }
+        final ByteBuffer young = randomKeyBuffer();
+        cells.put(young, Value.tombstone());
+        final ByteBuffer alive = randomKeyBuffer();
+        cells.put(alive, new Value(1L, randomValueBuffer()));
+        final List<FileTable> inputs = new ArrayList<>();
+        inputs.add(table(data, generations, cells));
+
+        final List<FileTable> outputs = merge(data, generations, inputs, new TableSet(inputs));
+        assertEquals(1, outputs.size());
+        final Iterator<Cell> merged = outputs.get(0).iterator(LSMDao.nullBuffer);
+        final List<ByteBuffer> keys = new ArrayList<>();
+        merged.forEachRemaining(cell -> keys.add(cell.getKey()));
+        assertEquals(2, keys.size());
+        assertTrue(keys.contains(young));
+        assertTrue(keys.contains(alive));
+    }
+
+    @Test
+    void shadowingTombstonesKept(@TempDir File data) throws IOException {
+        final AtomicLong generations = new AtomicLong();
+        final ByteBuffer key = randomKeyBuffer();
+        final NavigableMap<ByteBuffer, Value> older = new TreeMap<>();
+        older.put(key, Value.of(randomValueBuffer()));
+        final FileTable bottom = table(data, generations, older);
+        final NavigableMap<ByteBuffer, Value> newer = new TreeMap<>();
+        newer.put(key, new Value(1L, null));
+        newer.put(randomKeyBuffer(), new Value(1L, null));
+        final List<FileTable> inputs = new ArrayList<>();
+        inputs.add(table(data, generations, newer));
+
+        final List<FileTable> all = new ArrayList<>(inputs);
+        all.add(bottom);
+        final List<FileTable> outputs = merge(data, generations, inputs, new TableSet(all));
+        assertEquals(1, outputs.size());
+        final Iterator<Cell> merged = outputs.get(0).iterator(LSMDao.nullBuffer);
+        final Cell cell = merged.next();
+        assertEquals(key, cell.getKey());
+        assertTrue(cell.getValue().isRemoved());
+        assertFalse(merged.hasNext());
+    }
+
+    private static FileTable table(final File data,
+                                   final AtomicLong generations,
+                                   final NavigableMap<ByteBuffer, Value> cells) throws IOException {
+        final long generation = generations.incrementAndGet();
+        final File file = new File(data, LSMDao.PREFIX + generation + LSMDao.SUFFIX);
+        FileTable.write(cells.entrySet().stream().map(e -> new Cell(e.getKey(), e.getValue())).iterator(),
+                file, Codec.NONE, cells.size());
+        return new FileTable(file, generation);
+    }
+
+    private static List<FileTable> merge(final File data,
+                                         final AtomicLong generations,
+                                         final List<FileTable> inputs,
+                                         final TableSet files) throws IOException {
+        final LSMConfig config = new LSMConfig();
+        config.tombstoneGracePeriod = 60L * 1000;
+        try (WriteBuffers buffers = new WriteBuffers();
+             Compactor compactor = new Compactor(data, config, generations, BlockCache.NONE, buffers)) {
+            return compactor.merge(new CompactionTask(inputs, 1, false), files);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ru.mail.polis.dao.pranova;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks replay of {@link WriteAheadLog} segments.
+ */
+class WriteAheadLogTest extends TestBase {
+    private static final String PREFIX = "PRL";
+    private static final int THREADS = 8;
+    private static final int WRITES = 500;
+
+    @Test
+    void replay(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final ByteBuffer removed = randomKeyBuffer();
+        final Value written = Value.of(value);
+        final Value tombstone = Value.tombstone();
+
+        try (WriteAheadLog wal = new WriteAheadLog(data, PREFIX, 1, true)) {
+            wal.sync(wal.append(key, written));
+            wal.sync(wal.append(removed, tombstone));
+        }
+
+        final MemTable table = new MemTable();
+        WriteAheadLog.replay(new File(data, PREFIX + 1 + WriteAheadLog.SUFFIX), table);
+        final Iterator<Cell> cells = table.iterator(ByteBuffer.allocate(0));
+        while (cells.hasNext()) {
+            final Cell cell = cells.next();
+            if (cell.getKey().equals(key)) {
+                assertEquals(value, cell.getValue().getData());
+                assertEquals(written.getTimeStamp(), cell.getValue().getTimeStamp());
+            } else {
+                assertEquals(removed, cell.getKey());
+                assertTrue(cell.getValue().isRemoved());
+                assertEquals(tombstone.getTimeStamp(), cell.getValue().getTimeStamp());
+            }
+        }
+    }
+
+    @Test
+    void tornTail(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+
+        try (WriteAheadLog wal = new WriteAheadLog(data, PREFIX, 1, false)) {
+            wal.append(key, Value.of(value));
+            wal.append(randomKeyBuffer(), Value.of(randomValueBuffer()));
+        }
+
+        final File segment = new File(data, PREFIX + 1 + WriteAheadLog.SUFFIX);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+
+        final MemTable table = new MemTable();
+        WriteAheadLog.replay(segment, table);
+        final Iterator<Cell> cells = table.iterator(ByteBuffer.allocate(0));
+        assertTrue(cells.hasNext());
+        assertEquals(value, cells.next().getValue().getData());
+        assertFalse(cells.hasNext());
+    }
+
+    @Test
+    void truncate(@TempDir File data) throws IOException {
+        try (WriteAheadLog wal = new WriteAheadLog(data, PREFIX, 1, false)) {
+            wal.append(randomKeyBuffer(), Value.of(randomValueBuffer()));
+            wal.roll(2);
+            wal.truncate(1);
+        }
+        assertFalse(new File(data, PREFIX + 1 + WriteAheadLog.SUFFIX).exists());
+        assertTrue(new File(data, PREFIX + 2 + WriteAheadLog.SUFFIX).exists());
+    }
+
+    @Test
+    void concurrentBatches(@TempDir File data) throws Exception {
+        final File segment = new File(data, PREFIX + 1 + WriteAheadLog.SUFFIX);
+        try (WriteAheadLog wal = new WriteAheadLog(data, PREFIX, 1, false)) {
+            final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < WRITES; i++) {
+                        final long position = wal.append(randomKeyBuffer(), Value.of(randomValueBuffer()));
+                        wal.sync(position);
+                        // Written out by the time the write is acknowledged, even without fsync
+                        assertTrue(segment.length() >= position);
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+        }
+
+        final MemTable table = new MemTable();
+        WriteAheadLog.replay(segment, table);
+        int records = 0;
+        for (final Iterator<Cell> cells = table.iterator(ByteBuffer.allocate(0)); cells.hasNext(); cells.next()) {
+            records++;
+        }
+        assertEquals(THREADS * WRITES, records);
+    }
+}